@@ -0,0 +1,159 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits how many renders can be in progress at once, so that when the farm
+ * falls behind new requests are turned away quickly rather than all timing
+ * out together. A few requests over the limit may wait briefly for a slot.
+ * <p>
+ * The limit follows Little's law. While at the limit, throughput is the limit
+ * divided by latency, so the concurrency that keeps latency at the target is
+ * throughput times the target latency. This is recomputed from the renders
+ * that finished in each window and blended into the current limit.
+ */
+public class AdmissionControl {
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final double SMOOTHING = 0.2;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyMillis;
+    private final int maxWaiting;
+    private final long maxWaitNanos;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long windowStart = System.nanoTime();
+    private int windowCompletions;
+    private long windowLatency;
+    private double averageLatencyMillis;
+    private long admitted;
+    private long queued;
+    private long rejected;
+
+    public AdmissionControl(int minLimit, int maxLimit, long targetLatencyMillis, int maxWaiting, long maxWaitMillis) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyMillis = targetLatencyMillis;
+        this.maxWaiting = maxWaiting;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.limit = minLimit;
+    }
+
+    /**
+     * Takes a slot for a render, waiting briefly if there isn't one.
+     *
+     * @return false if the render should be turned away
+     */
+    public synchronized boolean acquire() throws InterruptedException {
+        if (inFlight < (int) limit) {
+            inFlight++;
+            admitted++;
+            return true;
+        }
+        if (waiting >= maxWaiting) {
+            rejected++;
+            return false;
+        }
+        waiting++;
+        queued++;
+        try {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            while (inFlight >= (int) limit) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected++;
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+            admitted++;
+            return true;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Gives back a slot taken with {@link #acquire}.
+     *
+     * @param latencyMillis how long the render took, successful or not
+     */
+    public synchronized void release(long latencyMillis) {
+        inFlight--;
+        windowCompletions++;
+        windowLatency += latencyMillis;
+        long now = System.nanoTime();
+        if (now - windowStart >= WINDOW_NANOS) {
+            double latency = Math.max(1, windowLatency / (double) windowCompletions);
+            averageLatencyMillis = latency;
+            // don't let one unusual window swing the limit too far
+            double gradient = Math.max(0.5, Math.min(2, targetLatencyMillis / latency));
+            double target = Math.max(minLimit, Math.min(maxLimit, limit * gradient));
+            limit = limit + (target - limit) * SMOOTHING;
+            windowStart = now;
+            windowCompletions = 0;
+            windowLatency = 0;
+        }
+        // the limit may have grown by more than one slot
+        notifyAll();
+    }
+
+    /**
+     * @return how long a turned away client should wait before trying again
+     */
+    public synchronized int getRetryAfterSeconds() {
+        return (int) Math.max(1, Math.ceil(Math.max(averageLatencyMillis, targetLatencyMillis) / 1000));
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    public synchronized long getAdmitted() {
+        return admitted;
+    }
+
+    public synchronized long getQueued() {
+        return queued;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+}
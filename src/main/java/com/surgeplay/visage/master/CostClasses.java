@@ -0,0 +1,95 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.surgeplay.visage.RenderMode;
+import com.surgeplay.visage.protocol.RenderProtocol;
+import com.typesafe.config.Config;
+
+import java.util.List;
+
+/**
+ * Sorts render jobs into queues by how expensive they are to render, so that
+ * slaves can take cheap jobs without waiting behind expensive ones. The cost
+ * of a job is its pixel count, including supersampling, times a factor for
+ * the amount of geometry in its mode.
+ */
+public class CostClasses {
+    private final String[] queues;
+    private final long[] maxCosts;
+
+    /**
+     * @param classes the cost classes in ascending order; the last one takes
+     *      every job too expensive for the others. If empty, every job goes
+     *      to the base queue.
+     */
+    public CostClasses(String baseQueue, List<? extends Config> classes) {
+        if (classes.isEmpty()) {
+            queues = new String[] { baseQueue };
+            maxCosts = new long[] { Long.MAX_VALUE };
+            return;
+        }
+        queues = new String[classes.size()];
+        maxCosts = new long[classes.size()];
+        for (int i = 0; i < queues.length; i++) {
+            Config c = classes.get(i);
+            queues[i] = RenderProtocol.getCostClassQueue(baseQueue, c.getString("name"));
+            maxCosts[i] = i == queues.length - 1 || !c.hasPath("max-cost") ? Long.MAX_VALUE : c.getLong("max-cost");
+        }
+    }
+
+    /**
+     * @param width the width to render at, including supersampling
+     * @param height the height to render at, including supersampling
+     */
+    public String getQueue(RenderMode mode, int width, int height) {
+        long cost = getCost(mode, width, height);
+        for (int i = 0; i < queues.length; i++) {
+            if (cost <= maxCosts[i]) return queues[i];
+        }
+        return queues[queues.length - 1];
+    }
+
+    public String[] getQueues() {
+        return queues.clone();
+    }
+
+    public static long getCost(RenderMode mode, int width, int height) {
+        long pixels = (long) width * height;
+        switch (mode) {
+            case FACE:
+                // no OpenGL involved, just a scaled copy
+                return pixels / 16;
+            case HEAD:
+                return pixels;
+            case BUST:
+                return pixels * 2;
+            case FULL:
+                return pixels * 3;
+            default:
+                return pixels;
+        }
+    }
+}
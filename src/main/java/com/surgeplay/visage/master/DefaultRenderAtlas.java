@@ -0,0 +1,182 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.surgeplay.visage.RenderMode;
+import com.surgeplay.visage.Visage;
+import org.spacehq.mc.auth.data.GameProfile;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Keeps every render of the default skins that can be requested without
+ * parameters in memory for good. These are what X-Steve, X-Alex and every
+ * player without a custom skin get, so they're requested far more than any
+ * other render, and there are few enough of them to hold all at once.
+ */
+public class DefaultRenderAtlas {
+    public static final String STEVE_ID = "steve";
+    public static final String ALEX_ID = "alex";
+    /** The subjects that always use the default skins. */
+    public static final UUID STEVE_UUID = new UUID(0 | (8 << 12), 0);
+    public static final UUID ALEX_UUID = new UUID(0 | (8 << 12), 1);
+
+    private final Set<RenderKey> keys;
+    private final ConcurrentMap<RenderKey, byte[]> renders = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Works out every key a request can produce, following the same size
+     * rules as {@link VisageHandler}.
+     */
+    public DefaultRenderAtlas(Set<RenderMode> modes, int minSize, int maxSize, int granularity, int supersampling) {
+        ImmutableSet.Builder<RenderKey> builder = ImmutableSet.builder();
+        for (RenderMode mode : modes) {
+            if (mode == RenderMode.SKIN) continue;
+            int max = mode == RenderMode.FULL ? (int) (maxSize * 1.625) : maxSize;
+            int first = (minSize + granularity - 1) / granularity * granularity;
+            for (int height = first; height <= max; height += granularity) {
+                int width = mode == RenderMode.FULL ? (int) Math.ceil(height / 1.625f) : height;
+                builder.add(new RenderKey(mode, width, height, supersampling, STEVE_ID, false, Collections.<String, String[]>emptyMap()));
+                builder.add(new RenderKey(mode, width, height, supersampling, ALEX_ID, true, Collections.<String, String[]>emptyMap()));
+            }
+        }
+        keys = builder.build();
+    }
+
+    /**
+     * @return null if the render isn't in the atlas (yet)
+     */
+    public byte[] get(RenderKey key) {
+        byte[] png = renders.get(key);
+        if (png != null) hits.incrementAndGet();
+        return png;
+    }
+
+    /**
+     * @return false if the render doesn't belong in the atlas, and should be
+     *      cached elsewhere instead
+     */
+    public boolean put(RenderKey key, byte[] png) {
+        if (!keys.contains(key)) return false;
+        if (renders.putIfAbsent(key, png) == null) {
+            bytes.addAndGet(png.length);
+        }
+        return true;
+    }
+
+    /**
+     * Renders everything that isn't in the atlas yet, one at a time so as not
+     * to crowd out real requests.
+     */
+    public void fill(VisageMaster master) {
+        Visage.log.info("Rendering " + keys.size() + " default skin renders");
+        new Filler(master).next();
+    }
+
+    public int getEntries() {
+        return renders.size();
+    }
+
+    public int getCapacity() {
+        return keys.size();
+    }
+
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Starts the next render whenever the last one is done. Each render's
+     * result is handled on the filler's own thread, so renders that fail
+     * straight away don't pile up on one stack.
+     */
+    private class Filler implements FutureCallback<RenderResponse> {
+        private final VisageMaster master;
+        private final ExecutorService executor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("Default render thread").setDaemon(true).build());
+        private final Iterator<RenderKey> iter = ImmutableList.copyOf(keys).iterator();
+        private RenderKey key;
+
+        public Filler(VisageMaster master) {
+            this.master = master;
+        }
+
+        public void next() {
+            while (iter.hasNext()) {
+                key = iter.next();
+                if (renders.containsKey(key)) continue;
+                boolean slim = ALEX_ID.equals(key.getSkin());
+                byte[] skin = slim ? master.alex : master.steve;
+                if (key.getMode() == RenderMode.FACE) {
+                    try {
+                        put(key, master.getFaceRenderer().render(key.getSkin(), skin, key.getWidth(), key.getHeight()));
+                    } catch (Exception e) {
+                        Visage.log.log(Level.WARNING, "Could not draw default " + key, e);
+                    }
+                    continue;
+                }
+                GameProfile profile = new GameProfile(slim ? ALEX_UUID : STEVE_UUID, slim ? "Alex" : "Steve");
+                int ss = key.getSupersampling();
+                Futures.addCallback(master.renderRpc(key.getMode(), key.getWidth() * ss, key.getHeight() * ss, ss, profile, skin, key.getSkin(),
+                        false, key.getParams(), UUID.randomUUID().toString()), this, executor);
+                return;
+            }
+            executor.shutdown();
+            Visage.log.info("Finished rendering " + renders.size() + "/" + keys.size() + " default skin renders");
+        }
+
+        @Override
+        public void onSuccess(RenderResponse resp) {
+            put(key, resp.png);
+            next();
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            Visage.log.log(Level.WARNING, "Could not render default " + key, t);
+            next();
+        }
+    }
+}
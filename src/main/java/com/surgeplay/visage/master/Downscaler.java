@@ -0,0 +1,147 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sixlegs.png.PngImage;
+import com.surgeplay.visage.RenderMode;
+import com.surgeplay.visage.util.Images;
+import com.surgeplay.visage.util.PngEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes smaller renders by shrinking the largest render of the same subject,
+ * so each subject only needs one real render per mode rather than one for
+ * every size. Renders much smaller than the largest are still rendered for
+ * real, as fine details like the outline of the helm hold up better that way.
+ */
+public class Downscaler {
+    private final int maxSize, granularity, maxFactor;
+    private final ListeningExecutorService executor;
+    /** Decoded sources, so shrinking one to several sizes only decodes it once. */
+    private final Cache<RenderKey, int[]> sources;
+    private final AtomicLong derived = new AtomicLong();
+    private final ThreadLocal<PngEncoder> encoders;
+
+    /**
+     * @param maxFactor how many times smaller than the largest render a render
+     *      can be and still be made by shrinking it
+     * @param maxSourceBytes how much memory to use for decoded sources
+     * @param pngCompression see {@link PngEncoder#PngEncoder(int)}
+     */
+    public Downscaler(int maxSize, int granularity, int maxFactor, long maxSourceBytes, int threads, final int pngCompression) {
+        this.maxSize = maxSize;
+        this.granularity = granularity;
+        this.maxFactor = maxFactor;
+        this.executor = MoreExecutors.listeningDecorator(Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setNameFormat("Downscale thread #%d").setDaemon(true).build()));
+        this.sources = CacheBuilder.newBuilder()
+                .maximumWeight(maxSourceBytes)
+                .weigher(new Weigher<RenderKey, int[]>() {
+                    @Override
+                    public int weigh(RenderKey key, int[] value) {
+                        return value.length * 4;
+                    }
+                })
+                .build();
+        this.encoders = new ThreadLocal<PngEncoder>() {
+            @Override
+            protected PngEncoder initialValue() {
+                return new PngEncoder(pngCompression);
+            }
+        };
+    }
+
+    /**
+     * @return the key of the render the given one can be made from, or null
+     *      if it has to be rendered for real
+     */
+    public RenderKey getSource(RenderKey key) {
+        RenderMode mode = key.getMode();
+        if (mode == RenderMode.FACE || mode == RenderMode.SKIN) return null;
+        // the largest size a request can be for, which is always on the grid
+        int max = mode == RenderMode.FULL ? (int) (maxSize * 1.625) : maxSize;
+        int height = max / granularity * granularity;
+        if (key.getHeight() >= height || key.getHeight() * maxFactor < height) return null;
+        int width = mode == RenderMode.FULL ? (int) Math.ceil(height / 1.625f) : height;
+        return new RenderKey(mode, width, height, key.getSupersampling(), key.getSkin(), key.isSlim(), key.getParams());
+    }
+
+    /**
+     * @param source the render of the key returned by {@link #getSource}
+     */
+    public ListenableFuture<RenderResponse> derive(final RenderKey key, final RenderKey sourceKey, ListenableFuture<RenderResponse> source) {
+        return Futures.transform(source, new AsyncFunction<RenderResponse, RenderResponse>() {
+            @Override
+            public ListenableFuture<RenderResponse> apply(final RenderResponse src) {
+                return executor.submit(new Callable<RenderResponse>() {
+                    @Override
+                    public RenderResponse call() throws Exception {
+                        int[] pixels = sources.getIfPresent(sourceKey);
+                        if (pixels == null) {
+                            BufferedImage img = new PngImage().read(new ByteArrayInputStream(src.png), true);
+                            if (img.getWidth() != sourceKey.getWidth() || img.getHeight() != sourceKey.getHeight()) {
+                                throw new IOException("Expected a " + sourceKey.getWidth() + "x" + sourceKey.getHeight() + " render, got " + img.getWidth() + "x" + img.getHeight());
+                            }
+                            pixels = img.getRGB(0, 0, sourceKey.getWidth(), sourceKey.getHeight(), null, 0, sourceKey.getWidth());
+                            sources.put(sourceKey, pixels);
+                        }
+                        int[] scaled = Images.downscale(pixels, sourceKey.getWidth(), sourceKey.getHeight(), key.getWidth(), key.getHeight());
+                        ByteArrayOutputStream png = new ByteArrayOutputStream();
+                        encoders.get().encode(scaled, key.getWidth(), key.getHeight(), png);
+                        derived.incrementAndGet();
+                        RenderResponse resp = new RenderResponse();
+                        resp.slave = src.slave;
+                        resp.png = png.toByteArray();
+                        return resp;
+                    }
+                });
+            }
+        });
+    }
+
+    public long getDerived() {
+        return derived.get();
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.sixlegs.png.PngImage;
+import com.surgeplay.visage.util.ExposedByteArrayOutputStream;
+import com.surgeplay.visage.util.PngEncoder;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/**
+ * Draws face renders on the master, as they're nothing more than two scaled
+ * copies of 8x8 areas of the skin and aren't worth sending to a slave.
+ * <p>
+ * Pixels are worked on as ARGB ints in buffers kept per thread, and scaled
+ * by nearest neighbour the same way {@link java.awt.Image#SCALE_FAST} does,
+ * so the output matches what slaves draw.
+ */
+public class FaceRenderer {
+    private static final int FACE_X = 8, HELM_X = 40, FACE_Y = 8, SIZE = 8;
+    private static final int INITIAL_PNG_SIZE = 16 * 1024;
+    private static final int MAX_RETAINED_PNG_SIZE = 1024 * 1024;
+
+    /** The face followed by the helm, or only the face if the helm is blank. */
+    private final Cache<String, int[]> faces = CacheBuilder.newBuilder()
+            .maximumSize(4096)
+            .build();
+    private final int pngCompression;
+    private final ThreadLocal<Buffers> buffers = new ThreadLocal<Buffers>() {
+        @Override
+        protected Buffers initialValue() {
+            return new Buffers(pngCompression);
+        }
+    };
+
+    private static class Buffers {
+        public int[] pixels = new int[0];
+        public ExposedByteArrayOutputStream png = new ExposedByteArrayOutputStream(INITIAL_PNG_SIZE);
+        public final PngEncoder encoder;
+
+        public Buffers(int pngCompression) {
+            encoder = new PngEncoder(pngCompression);
+        }
+    }
+
+    /**
+     * @param pngCompression see {@link PngEncoder#PngEncoder(int)}
+     */
+    public FaceRenderer(int pngCompression) {
+        this.pngCompression = pngCompression;
+    }
+
+    /**
+     * @param skinId used to remember the face, so the skin only has to be
+     *      decoded once
+     * @param skin the skin as a PNG
+     * @return the face as a PNG
+     */
+    public byte[] render(String skinId, byte[] skin, int width, int height) throws IOException {
+        int[] face = skinId == null ? null : faces.getIfPresent(skinId);
+        if (face == null) {
+            face = extract(skin);
+            if (skinId != null) {
+                faces.put(skinId, face);
+            }
+        }
+        Buffers b = buffers.get();
+        int len = width * height;
+        if (b.pixels.length < len) {
+            b.pixels = new int[len];
+        }
+        composite(face, b.pixels, width, height);
+        b.png.reset();
+        b.encoder.encode(b.pixels, width, height, b.png);
+        byte[] out = b.png.toByteArray();
+        if (b.png.capacity() > MAX_RETAINED_PNG_SIZE) {
+            b.png = new ExposedByteArrayOutputStream(INITIAL_PNG_SIZE);
+        }
+        return out;
+    }
+
+    /**
+     * Pulls the face and helm out of a skin, leaving out helms that are one
+     * solid color like slaves do. Works for both 64x32 and 64x64 skins, as
+     * the head is in the same place in both.
+     */
+    private static int[] extract(byte[] skin) throws IOException {
+        BufferedImage img = new PngImage().read(new ByteArrayInputStream(skin), true);
+        if (img.getWidth() < 64 || img.getHeight() < 16) {
+            throw new IOException("Skin is too small (" + img.getWidth() + "x" + img.getHeight() + ")");
+        }
+        // the second head layer
+        int[] helmArea = img.getRGB(32, 0, 32, 16, null, 0, 32);
+        int color = helmArea[8 * 32];
+        boolean solid = true;
+        for (int y = 0; y < 16 && solid; y++) {
+            for (int x = 0; x < 32; x++) {
+                if (y < 8 && (x < 8 || x > 22)) continue;
+                if (helmArea[y * 32 + x] != color) {
+                    solid = false;
+                    break;
+                }
+            }
+        }
+        int[] face = new int[solid ? SIZE * SIZE : SIZE * SIZE * 2];
+        img.getRGB(FACE_X, FACE_Y, SIZE, SIZE, face, 0, SIZE);
+        if (!solid) {
+            img.getRGB(HELM_X, FACE_Y, SIZE, SIZE, face, SIZE * SIZE, SIZE);
+        }
+        return face;
+    }
+
+    /**
+     * Draws the face inset by a border of 1/24 of the width, with the helm
+     * scaled to the whole image over it.
+     */
+    static void composite(int[] face, int[] out, int width, int height) {
+        boolean helm = face.length > SIZE * SIZE;
+        int border = width / 24;
+        int faceWidth = width - (border * 2);
+        int faceHeight = height - (border * 2);
+        for (int y = 0; y < height; y++) {
+            int fy = y - border;
+            int faceRow = fy >= 0 && fy < faceHeight ? sample(fy, faceHeight) * SIZE : -1;
+            int helmRow = SIZE * SIZE + sample(y, height) * SIZE;
+            int i = y * width;
+            for (int x = 0; x < width; x++, i++) {
+                int fx = x - border;
+                int px = faceRow != -1 && fx >= 0 && fx < faceWidth ? over(face[faceRow + sample(fx, faceWidth)], 0) : 0;
+                if (helm) {
+                    px = over(face[helmRow + sample(x, width)], px);
+                }
+                out[i] = px;
+            }
+        }
+    }
+
+    /**
+     * @return the source pixel for the given destination pixel, picked from
+     *      the middle of the area it covers like ReplicateScaleFilter does
+     */
+    private static int sample(int dst, int dstSize) {
+        return ((2 * dst + 1) * SIZE) / (2 * dstSize);
+    }
+
+    /**
+     * Blends two non-premultiplied ARGB pixels.
+     */
+    private static int over(int src, int dst) {
+        int sa = src >>> 24;
+        if (sa == 255) return src;
+        if (sa == 0) return dst;
+        int da = ((dst >>> 24) * (255 - sa)) / 255;
+        int a = sa + da;
+        int r = (((src >> 16) & 0xFF) * sa + ((dst >> 16) & 0xFF) * da) / a;
+        int g = (((src >> 8) & 0xFF) * sa + ((dst >> 8) & 0xFF) * da) / a;
+        int bl = ((src & 0xFF) * sa + (dst & 0xFF) * da) / a;
+        return (a << 24) | (r << 16) | (g << 8) | bl;
+    }
+}
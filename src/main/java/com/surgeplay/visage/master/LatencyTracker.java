@@ -0,0 +1,128 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.surgeplay.visage.RenderMode;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Tracks how long renders take from request to reply, separately for each
+ * mode and output size. Each histogram has logarithmic buckets 10% apart and
+ * halves its counts every so often, so it follows changes in the farm.
+ */
+public class LatencyTracker {
+    private static final double BUCKET_BASE = 1.1;
+    private static final int BUCKETS = 128;
+    private static final int DECAY_INTERVAL = 1024;
+
+    private final ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private final int minSamples;
+
+    /**
+     * @param minSamples the amount of samples needed before a percentile is reported
+     */
+    public LatencyTracker(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    public void record(RenderMode mode, int width, int height, long millis) {
+        String key = key(mode, width, height);
+        Histogram h = histograms.get(key);
+        if (h == null) {
+            h = new Histogram();
+            Histogram existing = histograms.putIfAbsent(key, h);
+            if (existing != null) {
+                h = existing;
+            }
+        }
+        h.record(millis);
+    }
+
+    /**
+     * @return the given percentile of render latency in milliseconds, or -1 if
+     *      there aren't enough samples yet
+     */
+    public long getPercentile(RenderMode mode, int width, int height, double percentile) {
+        Histogram h = histograms.get(key(mode, width, height));
+        return h == null ? -1 : h.percentile(percentile, minSamples);
+    }
+
+    /**
+     * @return the given percentile for every mode and size with enough samples
+     */
+    public SortedMap<String, Long> getPercentiles(double percentile) {
+        SortedMap<String, Long> out = new TreeMap<>();
+        for (Map.Entry<String, Histogram> en : histograms.entrySet()) {
+            long p = en.getValue().percentile(percentile, minSamples);
+            if (p != -1) {
+                out.put(en.getKey(), p);
+            }
+        }
+        return out;
+    }
+
+    private static String key(RenderMode mode, int width, int height) {
+        return mode.name().toLowerCase() + "." + width + "x" + height;
+    }
+
+    private static class Histogram {
+        private final int[] counts = new int[BUCKETS];
+        private int total;
+        private int sinceDecay;
+
+        public synchronized void record(long millis) {
+            int bucket = millis <= 1 ? 0 : (int) (Math.log(millis) / Math.log(BUCKET_BASE)) + 1;
+            counts[Math.min(bucket, BUCKETS - 1)]++;
+            total++;
+            if (++sinceDecay >= DECAY_INTERVAL) {
+                sinceDecay = 0;
+                total = 0;
+                for (int i = 0; i < BUCKETS; i++) {
+                    counts[i] >>= 1;
+                    total += counts[i];
+                }
+            }
+        }
+
+        public synchronized long percentile(double percentile, int minSamples) {
+            if (total < minSamples || total == 0) return -1;
+            long target = (long) Math.ceil(total * percentile);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    // the upper bound of the bucket, so this errs on the side of waiting
+                    return (long) Math.ceil(Math.pow(BUCKET_BASE, i));
+                }
+            }
+            return (long) Math.ceil(Math.pow(BUCKET_BASE, BUCKETS - 1));
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.surgeplay.visage.master.exception.RenderFailedException;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+import com.surgeplay.visage.slave.LocalRenderJob;
+import com.surgeplay.visage.slave.VisageSlave;
+import com.surgeplay.visage.util.HashedWheelTimer;
+import com.surgeplay.visage.util.HashedWheelTimer.Timeout;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hands requests straight to a slave running in the same process, for
+ * single-machine deployments and load testing without RabbitMQ.
+ */
+public class LocalRenderTransport implements RenderTransport {
+    private final VisageSlave slave;
+    private final HashedWheelTimer timer;
+
+    public LocalRenderTransport(VisageSlave slave, HashedWheelTimer timer) {
+        this.slave = slave;
+        this.timer = timer;
+    }
+
+    @Override
+    public ListenableFuture<RenderReply> send(final RenderRequest req, final String token, long timeoutMillis) {
+        final long deadline = System.currentTimeMillis() + timeoutMillis;
+        ListenableFuture<Void> ready = slave.getReady();
+        if (ready.isDone()) {
+            return submit(req, token, deadline);
+        }
+        // the slave is still starting up, which isn't the same as being busy
+        final SettableFuture<RenderReply> result = SettableFuture.create();
+        final Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                result.setException(new RenderFailedException("The local slave did not start in time"));
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        Futures.addCallback(ready, new FutureCallback<Void>() {
+            @Override
+            public void onSuccess(Void v) {
+                timeout.cancel();
+                if (result.isDone()) return;
+                Futures.addCallback(submit(req, token, deadline), new FutureCallback<RenderReply>() {
+                    @Override
+                    public void onSuccess(RenderReply reply) {
+                        result.set(reply);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        result.setException(t);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                timeout.cancel();
+                result.setException(new RenderFailedException("The local slave could not start", t));
+            }
+        });
+        return result;
+    }
+
+    private ListenableFuture<RenderReply> submit(RenderRequest req, String token, long deadline) {
+        long timeoutMillis = deadline - System.currentTimeMillis();
+        if (timeoutMillis <= 0) {
+            return Futures.immediateFailedFuture(new RenderFailedException("Request timed out"));
+        }
+        final LocalRenderJob job = new LocalRenderJob(req, token, deadline);
+        if (!slave.submit(job)) {
+            return Futures.immediateFailedFuture(new RenderFailedException("The local slave is busy"));
+        }
+        final Timeout timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                job.finished();
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        ListenableFuture<RenderReply> reply = job.getReply();
+        reply.addListener(new Runnable() {
+            @Override
+            public void run() {
+                timeout.cancel();
+            }
+        }, MoreExecutors.directExecutor());
+        return Futures.withFallback(reply, new FutureFallback<RenderReply>() {
+            @Override
+            public ListenableFuture<RenderReply> create(Throwable t) {
+                return Futures.immediateFailedFuture(new RenderFailedException("Request timed out", t));
+            }
+        });
+    }
+
+    @Override
+    public void cancel(String token) {
+        slave.cancel(token);
+    }
+
+    @Override
+    public void shutdown() {
+        slave.shutdown();
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.surgeplay.visage.Visage;
+import org.spacehq.mc.auth.data.GameProfile;
+import org.spacehq.mc.auth.exception.profile.ProfileNotFoundException;
+import org.spacehq.mc.auth.service.ProfileService;
+import org.spacehq.mc.auth.service.ProfileService.ProfileLookupCallback;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Resolves usernames that missed the resolver cache. Lookups are collected
+ * for a short window and sent to Mojang as a single batched request, and
+ * concurrent lookups of the same name share one result. Batches are sent on
+ * a small pool, so one slow request doesn't hold up the ones behind it.
+ */
+public class NameResolver {
+    private static final int MAX_BATCH = 100;
+
+    private final VisageMaster master;
+    private final ProfileService profiles = new ProfileService();
+    private final long windowMillis, ttlMillis;
+    private final ConcurrentMap<String, SettableFuture<UUID>> pending = new ConcurrentHashMap<>();
+    private final Queue<String> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final ScheduledExecutorService executor;
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * @param threads how many batches may be looked up at once
+     */
+    public NameResolver(VisageMaster master, long windowMillis, long ttlMillis, int threads) {
+        this.master = master;
+        this.windowMillis = windowMillis;
+        this.ttlMillis = ttlMillis;
+        executor = new ScheduledThreadPoolExecutor(Math.max(1, threads), new ThreadFactoryBuilder().setNameFormat("Name resolver thread #%d").setDaemon(true).build());
+    }
+
+    public ListenableFuture<UUID> resolve(String name) {
+        lookups.incrementAndGet();
+        SettableFuture<UUID> future = SettableFuture.create();
+        SettableFuture<UUID> existing = pending.putIfAbsent(name.toLowerCase(), future);
+        if (existing != null) {
+            coalesced.incrementAndGet();
+            return existing;
+        }
+        queue.add(name);
+        if (scheduled.compareAndSet(false, true)) {
+            executor.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            }, windowMillis, TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    private void flush() {
+        scheduled.set(false);
+        while (!queue.isEmpty()) {
+            List<String> names = Lists.newArrayList();
+            String name;
+            while (names.size() < MAX_BATCH && (name = queue.poll()) != null) {
+                names.add(name);
+            }
+            final List<String> batch = names;
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    lookup(batch);
+                }
+            });
+        }
+    }
+
+    private void lookup(List<String> names) {
+        batches.incrementAndGet();
+        if (Visage.debug) Visage.log.finer("Looking up " + names.size() + " name(s) in one request");
+        final Map<String, Object> results = Maps.newHashMap();
+        try {
+            profiles.findProfilesByName(names.toArray(new String[names.size()]), new ProfileLookupCallback() {
+                @Override
+                public void onProfileLookupSucceeded(GameProfile profile) {
+                    results.put(profile.getName().toLowerCase(), profile.getId());
+                }
+
+                @Override
+                public void onProfileLookupFailed(GameProfile profile, Exception e) {
+                    results.put(profile.getName().toLowerCase(), e);
+                }
+            });
+        } catch (Exception e) {
+            Visage.log.log(Level.WARNING, "An error occurred while looking up player names", e);
+            for (String name : names) {
+                SettableFuture<UUID> future = pending.remove(name.toLowerCase());
+                if (future != null) future.setException(e);
+            }
+            return;
+        }
+        try (Jedis j = master.getResolverJedis()) {
+            Pipeline p = j.pipelined();
+            NegativeCache negative = master.getNegativeCache();
+            for (String name : names) {
+                Object result = results.get(name.toLowerCase());
+                if (result instanceof UUID) {
+                    // names are case insensitive, and looked up in lowercase
+                    p.psetex(name.toLowerCase(), VisageMaster.toPsetexTtl(ttlMillis), result.toString());
+                } else if (result == null || result instanceof ProfileNotFoundException) {
+                    negative.markMissingName(p, name);
+                }
+            }
+            p.sync();
+        } catch (Exception e) {
+            Visage.log.log(Level.WARNING, "An error occurred while caching resolved player names", e);
+        }
+        for (String name : names) {
+            SettableFuture<UUID> future = pending.remove(name.toLowerCase());
+            if (future == null) continue;
+            Object result = results.get(name.toLowerCase());
+            if (result instanceof UUID) {
+                future.set((UUID) result);
+            } else if (result instanceof Exception) {
+                future.setException((Exception) result);
+            } else {
+                future.setException(new ProfileNotFoundException("Could not find a player named '" + name + "'"));
+            }
+        }
+    }
+
+    public long getLookups() {
+        return lookups.get();
+    }
+
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import redis.clients.jedis.Pipeline;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers names and UUIDs that Mojang doesn't know about, so repeated
+ * requests for them don't each cause an upstream lookup. Entries live in
+ * Redis (in the resolver and skin databases respectively) with a small
+ * in-process tier in front of them. Callers check the in-process tier
+ * first, and only on a miss there make the Redis lookup, in the same
+ * pipeline as the positive lookups.
+ */
+public class NegativeCache {
+    private static final int NEAR_SIZE = 10000;
+
+    private final long ttlMillis;
+    private final Cache<String, Boolean> near;
+    private final AtomicLong nearHits = new AtomicLong();
+    private final AtomicLong redisHits = new AtomicLong();
+    private final AtomicLong marks = new AtomicLong();
+
+    public NegativeCache(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+        near = CacheBuilder.newBuilder()
+                .expireAfterWrite(Math.max(1, ttlMillis), TimeUnit.MILLISECONDS)
+                .maximumSize(NEAR_SIZE)
+                .build();
+    }
+
+    /**
+     * @return true if the name is known to be missing without asking Redis
+     */
+    public boolean isNearMissingName(String name) {
+        return isNearMissing(nameKey(name));
+    }
+
+    /**
+     * @param inRedis whether {@link #nameKey(String)} exists in the resolver database
+     */
+    public boolean isMissingName(String name, boolean inRedis) {
+        return isMissing(nameKey(name), inRedis);
+    }
+
+    /**
+     * @param p a pipeline on the resolver database
+     */
+    public void markMissingName(Pipeline p, String name) {
+        mark(p, nameKey(name));
+    }
+
+    /**
+     * @return true if the UUID is known to be missing without asking Redis
+     */
+    public boolean isNearMissingProfile(UUID uuid) {
+        return isNearMissing(profileKey(uuid));
+    }
+
+    /**
+     * @param inRedis whether {@link #profileKey(UUID)} exists in the skin database
+     */
+    public boolean isMissingProfile(UUID uuid, boolean inRedis) {
+        return isMissing(profileKey(uuid), inRedis);
+    }
+
+    /**
+     * @param p a pipeline on the skin database
+     */
+    public void markMissingProfile(Pipeline p, UUID uuid) {
+        mark(p, profileKey(uuid));
+    }
+
+    public static String nameKey(String name) {
+        return name.toLowerCase() + ":missing";
+    }
+
+    public static String profileKey(UUID uuid) {
+        return uuid.toString() + ":missing";
+    }
+
+    public long getNearHits() {
+        return nearHits.get();
+    }
+
+    public long getRedisHits() {
+        return redisHits.get();
+    }
+
+    public long getMarks() {
+        return marks.get();
+    }
+
+    private boolean isNearMissing(String key) {
+        if (ttlMillis <= 0) return false;
+        if (near.getIfPresent(key) != null) {
+            nearHits.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isMissing(String key, boolean inRedis) {
+        if (ttlMillis <= 0) return false;
+        if (inRedis) {
+            redisHits.incrementAndGet();
+            near.put(key, Boolean.TRUE);
+            return true;
+        }
+        return false;
+    }
+
+    private void mark(Pipeline p, String key) {
+        if (ttlMillis <= 0) return;
+        marks.incrementAndGet();
+        near.put(key, Boolean.TRUE);
+        p.psetex(key, VisageMaster.toPsetexTtl(ttlMillis), "1");
+    }
+}
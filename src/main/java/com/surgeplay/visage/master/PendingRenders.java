@@ -0,0 +1,181 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.master.exception.RenderFailedException;
+import com.surgeplay.visage.util.HashedWheelTimer;
+import com.surgeplay.visage.util.HashedWheelTimer.Timeout;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Correlates render replies with the requests waiting on them. Each
+ * correlation ID maps to a single entry holding its completion slot and
+ * deadline; deadlines are enforced by a timing wheel rather than by the
+ * waiting threads.
+ */
+public class PendingRenders {
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final HashedWheelTimer timer;
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong late = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    /** Requests given up on, whose replies may still arrive but aren't late. */
+    private final Cache<String, Boolean> abandoned = CacheBuilder.newBuilder()
+            .expireAfterWrite(1, TimeUnit.MINUTES)
+            .maximumSize(10000)
+            .build();
+
+    public PendingRenders() {
+        timer = new HashedWheelTimer("Render timeout thread", 10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    public ListenableFuture<byte[]> register(String corrId, long timeoutMillis) {
+        final Entry entry = new Entry(corrId, System.currentTimeMillis() + timeoutMillis);
+        // the entry must be findable before its expiry can run
+        entries.put(corrId, entry);
+        entry.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (entries.remove(entry.corrId, entry)) {
+                    if (Visage.trace) Visage.log.finest("Request " + entry.corrId + " passed its deadline of " + entry.deadline + ", assuming timeout");
+                    expired.incrementAndGet();
+                    entry.future.setException(new RenderFailedException("Request timed out"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        // e.g. the losing attempt of a hedged render
+        entry.future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                if (!entry.future.isCancelled()) return;
+                // before removing it, so a reply racing in isn't counted as late
+                abandoned.put(entry.corrId, Boolean.TRUE);
+                if (entries.remove(entry.corrId, entry)) {
+                    entry.cancelTimeout();
+                    cancelled.incrementAndGet();
+                } else {
+                    abandoned.invalidate(entry.corrId);
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        return entry.future;
+    }
+
+    /**
+     * @return false if nothing was waiting on this correlation ID, meaning
+     * the reply arrived after its request expired or was cancelled
+     */
+    public boolean complete(String corrId, byte[] body) {
+        Entry entry = entries.remove(corrId);
+        if (entry == null) {
+            if (abandoned.asMap().remove(corrId) == null) {
+                late.incrementAndGet();
+            }
+            return false;
+        }
+        entry.cancelTimeout();
+        completed.incrementAndGet();
+        entry.future.set(body);
+        return true;
+    }
+
+    public boolean fail(String corrId, Throwable t) {
+        Entry entry = entries.remove(corrId);
+        if (entry == null) return false;
+        entry.cancelTimeout();
+        entry.future.setException(t);
+        return true;
+    }
+
+    public int getInFlight() {
+        return entries.size();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public long getLateArrivals() {
+        return late.get();
+    }
+
+    /**
+     * @return the amount of requests whose waiter gave up on them before
+     *      they were replied to
+     */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return the timing wheel used for deadlines, for scheduling other short
+     *      delays without another thread
+     */
+    public HashedWheelTimer getTimer() {
+        return timer;
+    }
+
+    public void shutdown() {
+        timer.stop();
+    }
+
+    private static class Entry {
+        private final String corrId;
+        private final long deadline;
+        private final SettableFuture<byte[]> future = SettableFuture.create();
+        private volatile Timeout timeout;
+
+        private Entry(String corrId, long deadline) {
+            this.corrId = corrId;
+            this.deadline = deadline;
+        }
+
+        /**
+         * A reply can beat the expiry being scheduled, in which case the
+         * expiry finds nothing to remove when it runs.
+         */
+        private void cancelTimeout() {
+            Timeout t = timeout;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.master.exception.RenderFailedException;
+import com.surgeplay.visage.protocol.RenderProtocol;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+import com.surgeplay.visage.util.ChannelPool;
+import com.typesafe.config.Config;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Sends requests to slaves through RabbitMQ, and matches up their replies on
+ * a dedicated thread.
+ */
+public class RabbitRenderTransport implements RenderTransport {
+    private static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+    private static final Delivery CONNECTION_LOST = new Delivery(null, null, null);
+    /** The shared queue a job sent straight to a slave would otherwise have gone to. */
+    private static final String SHARED_QUEUE_HEADER = "visage-shared-queue";
+
+    private final PendingRenders pending;
+    private final Connection conn;
+    private final Channel channel;
+    private final ChannelPool publishers;
+    private final CostClasses costClasses;
+    private final SlaveLoads loads;
+    private final String cancelExchange;
+    private final String replyQueue;
+    private final boolean directReplyTo;
+    private final BlockingQueue<Delivery> replies = new LinkedBlockingQueue<>();
+    private final Thread replyThread;
+    private volatile ShutdownSignalException connectionLost;
+
+    public RabbitRenderTransport(Config config, PendingRenders pending) throws IOException {
+        this.pending = pending;
+        Visage.log.info("Connecting to RabbitMQ at " + config.getString("rabbitmq.host") + ":" + config.getInt("rabbitmq.port"));
+        ConnectionFactory factory = new ConnectionFactory();
+        factory.setHost(config.getString("rabbitmq.host"));
+        factory.setPort(config.getInt("rabbitmq.port"));
+        factory.setRequestedHeartbeat(10);
+        if (config.hasPath("rabbitmq.user")) {
+            factory.setUsername(config.getString("rabbitmq.user"));
+            factory.setPassword(config.getString("rabbitmq.password"));
+        }
+        String queue = config.getString("rabbitmq.queue");
+
+        conn = factory.newConnection();
+        channel = conn.createChannel();
+        costClasses = new CostClasses(queue, config.getConfigList("rabbitmq.cost-classes"));
+        for (String q : costClasses.getQueues()) {
+            if (Visage.debug) Visage.log.finer("Setting up queue '" + q + "'");
+            channel.queueDeclare(q, false, false, true, null);
+        }
+        channel.basicQos(1);
+        cancelExchange = RenderProtocol.getCancelExchange(queue);
+        channel.exchangeDeclare(cancelExchange, "fanout");
+        if (config.getBoolean("rabbitmq.direct-routing")) {
+            loads = new SlaveLoads(queue, config.getDuration("rabbitmq.load-report-max-age", TimeUnit.MILLISECONDS));
+            String loadExchange = RenderProtocol.getLoadExchange(queue);
+            channel.exchangeDeclare(loadExchange, "fanout");
+            String loadQueue = channel.queueDeclare().getQueue();
+            channel.queueBind(loadQueue, loadExchange, "");
+            channel.basicConsume(loadQueue, true, new DefaultConsumer(channel) {
+                @Override
+                public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+                    try {
+                        loads.update(RenderProtocol.decodeLoad(body));
+                    } catch (IOException e) {
+                        if (Visage.debug) Visage.log.log(Level.FINER, "Ignoring malformed load report", e);
+                    }
+                }
+            });
+        } else {
+            loads = null;
+        }
+
+        conn.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                if (!cause.isInitiatedByApplication()) {
+                    connectionLost = cause;
+                    replies.add(CONNECTION_LOST);
+                }
+            }
+        });
+        directReplyTo = config.getBoolean("rabbitmq.direct-reply-to");
+        ChannelPool.Setup setup = new ChannelPool.Setup() {
+            @Override
+            public void setup(Channel channel) throws IOException {
+                if (directReplyTo) {
+                    // replies only come back on the channel the request was published on
+                    channel.basicConsume(DIRECT_REPLY_TO, true, new ReplyConsumer(channel));
+                }
+                if (loads != null) {
+                    channel.addReturnListener(new ReturnListener() {
+                        @Override
+                        public void handleReturn(int replyCode, String replyText, String exchange, String routingKey, BasicProperties properties, byte[] body) {
+                            replies.add(new Returned(routingKey, properties, body));
+                        }
+                    });
+                }
+            }
+        };
+        if (directReplyTo) {
+            if (Visage.debug) Visage.log.finer("Using direct reply-to");
+            replyQueue = DIRECT_REPLY_TO;
+        } else {
+            if (Visage.debug) Visage.log.finer("Setting up reply queue");
+            replyQueue = channel.queueDeclare().getQueue();
+            channel.basicConsume(replyQueue, new ReplyConsumer(channel));
+        }
+        publishers = new ChannelPool(conn, config.getInt("rabbitmq.publisher-channels"), config.getBoolean("rabbitmq.publisher-confirms"), setup);
+        publishers.open();
+
+        replyThread = new Thread("Reply thread") {
+            @Override
+            public void run() {
+                processReplies();
+            }
+        };
+        replyThread.start();
+    }
+
+    public ChannelPool getPublishers() {
+        return publishers;
+    }
+
+    /**
+     * @return null if direct routing is disabled
+     */
+    public SlaveLoads getLoads() {
+        return loads;
+    }
+
+    @Override
+    public ListenableFuture<RenderReply> send(RenderRequest req, String token, long timeoutMillis) {
+        final String corrId = UUID.randomUUID().toString();
+        try {
+            Map<String, Object> headers = new HashMap<>(4);
+            headers.put(RenderProtocol.DEADLINE_HEADER, System.currentTimeMillis() + timeoutMillis);
+            headers.put(RenderProtocol.TOKEN_HEADER, token);
+            String queue = costClasses.getQueue(req.mode, req.width, req.height);
+            boolean mandatory = false;
+            if (loads != null) {
+                // straight to a slave with a free render thread if there is one
+                String direct = loads.pick(queue);
+                if (direct != null) {
+                    // a slave that just died takes its queue with it, so have the broker hand the job back
+                    headers.put(SHARED_QUEUE_HEADER, queue);
+                    queue = direct;
+                    mandatory = true;
+                }
+            }
+            // the broker drops jobs nobody picked up in time; slaves drop the ones they got too late
+            BasicProperties props = new BasicProperties.Builder()
+                    .correlationId(corrId)
+                    .replyTo(replyQueue)
+                    .expiration(Long.toString(timeoutMillis))
+                    .headers(headers)
+                    .build();
+            byte[] body = RenderProtocol.encodeRequest(req);
+            ListenableFuture<byte[]> waiter = pending.register(corrId, timeoutMillis);
+            Futures.addCallback(publishers.publish("", queue, mandatory, props, body), new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {}
+
+                @Override
+                public void onFailure(Throwable t) {
+                    // don't wait for the timeout if the job never made it into the queue
+                    pending.fail(corrId, new RenderFailedException("RabbitMQ did not accept the request", t));
+                }
+            });
+            return Futures.transform(waiter, new AsyncFunction<byte[], RenderReply>() {
+                @Override
+                public ListenableFuture<RenderReply> apply(byte[] response) throws Exception {
+                    try {
+                        return Futures.immediateFuture(RenderProtocol.decodeReply(response));
+                    } catch (IOException e) {
+                        throw new RenderFailedException("Malformed response", e);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            pending.fail(corrId, e);
+            return Futures.immediateFailedFuture(new RenderFailedException("Unexpected error", e));
+        }
+    }
+
+    @Override
+    public void cancel(String token) throws IOException {
+        publishers.publish(cancelExchange, "", null, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void processReplies() {
+        Visage.log.info("Listening for finished jobs");
+        try {
+            while (true) {
+                Delivery delivery = replies.take();
+                if (delivery == CONNECTION_LOST) throw connectionLost;
+                if (delivery instanceof Returned) {
+                    reroute((Returned) delivery);
+                    continue;
+                }
+                if (Visage.trace) Visage.log.finest("Got delivery");
+                try {
+                    String corrId = delivery.getProperties().getCorrelationId();
+                    if (pending.complete(corrId, delivery.getBody())) {
+                        if (Visage.debug) Visage.log.finer("Got response");
+                        if (!directReplyTo) {
+                            channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                            if (Visage.trace) Visage.log.finest("Ack'd");
+                        }
+                    } else {
+                        if (Visage.debug) Visage.log.finer("Discarding late reply for correlation ID " + corrId);
+                        if (!directReplyTo) {
+                            channel.basicNack(delivery.getEnvelope().getDeliveryTag(), false, false);
+                        }
+                    }
+                } catch (Exception e) {
+                    Visage.log.log(Level.WARNING, "An unexpected error occured while attempting to process a response.", e);
+                }
+            }
+        } catch (InterruptedException e) {
+        } catch (Exception e) {
+            Visage.log.log(Level.SEVERE, "An unexpected error occured in the master reply loop.", e);
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Sends a job the broker couldn't deliver to its slave to the shared
+     * queue instead.
+     */
+    private void reroute(Returned job) {
+        final String corrId = job.getProperties().getCorrelationId();
+        Map<String, Object> headers = job.getProperties().getHeaders();
+        Object queue = headers == null ? null : headers.get(SHARED_QUEUE_HEADER);
+        if (Visage.debug) Visage.log.finer("Slave queue " + job.slaveQueue + " is gone, sending " + corrId + " to " + queue);
+        loads.returned(job.slaveQueue);
+        if (queue == null) {
+            pending.fail(corrId, new RenderFailedException("The slave the request was sent to is gone"));
+            return;
+        }
+        try {
+            Futures.addCallback(publishers.publish("", queue.toString(), job.getProperties(), job.getBody()), new FutureCallback<Void>() {
+                @Override
+                public void onSuccess(Void result) {}
+
+                @Override
+                public void onFailure(Throwable t) {
+                    pending.fail(corrId, new RenderFailedException("RabbitMQ did not accept the request", t));
+                }
+            });
+        } catch (Exception e) {
+            pending.fail(corrId, new RenderFailedException("Could not resend the request", e));
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        replyThread.interrupt();
+        conn.close(5000);
+    }
+
+    /**
+     * A job the broker handed back because its slave's queue is gone.
+     */
+    private static class Returned extends Delivery {
+        private final String slaveQueue;
+
+        public Returned(String slaveQueue, BasicProperties properties, byte[] body) {
+            super(null, properties, body);
+            this.slaveQueue = slaveQueue;
+        }
+    }
+
+    /**
+     * Hands replies to the reply thread, whichever channel they arrive on.
+     */
+    private class ReplyConsumer extends DefaultConsumer {
+        public ReplyConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+            replies.add(new Delivery(envelope, properties, body));
+        }
+    }
+}
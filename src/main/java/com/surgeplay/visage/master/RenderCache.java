@@ -0,0 +1,273 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.surgeplay.visage.RenderMode;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A byte-bounded cache of finished renders using W-TinyLFU eviction. New
+ * entries land in a small LRU window; entries leaving the window must beat
+ * the main region's eviction victim on estimated access frequency to be
+ * admitted, which keeps one-off renders from flushing out popular ones. The
+ * main region is a segmented LRU split into probation and protected parts.
+ */
+public class RenderCache {
+    private static final int REGION_WINDOW = 0, REGION_PROBATION = 1, REGION_PROTECTED = 2;
+    private static final int SWEEP_INTERVAL = 1024;
+
+    private final Map<RenderKey, Node> nodes = new HashMap<>();
+    @SuppressWarnings("unchecked")
+    private final LinkedHashMap<RenderKey, Node>[] regions = (LinkedHashMap<RenderKey, Node>[]) new LinkedHashMap<?, ?>[]{
+            new LinkedHashMap<RenderKey, Node>(), new LinkedHashMap<RenderKey, Node>(), new LinkedHashMap<RenderKey, Node>()
+    };
+    private final long[] regionBytes = new long[3];
+    private final long maxBytes, windowMax, protectedMax;
+    private final Map<RenderMode, Long> ttls;
+    private final FrequencySketch sketch;
+    private int writes = 0;
+    private long hits, misses, evictions;
+
+    public RenderCache(long maxBytes, Map<RenderMode, Long> ttls) {
+        this.maxBytes = maxBytes;
+        this.ttls = ttls;
+        this.windowMax = Math.max(1, maxBytes / 100);
+        this.protectedMax = (long) ((maxBytes - windowMax) * 0.8);
+        // assume roughly 8K per render to size the sketch
+        this.sketch = new FrequencySketch((int) Math.min(1 << 24, Math.max(1024, maxBytes / 8192)));
+    }
+
+    public synchronized byte[] get(RenderKey key) {
+        Node node = nodes.get(key);
+        sketch.increment(key.hashCode());
+        if (node == null) {
+            misses++;
+            return null;
+        }
+        if (node.isExpired(System.currentTimeMillis())) {
+            remove(node);
+            misses++;
+            return null;
+        }
+        hits++;
+        if (node.region == REGION_PROBATION) {
+            move(node, REGION_PROTECTED);
+            while (regionBytes[REGION_PROTECTED] > protectedMax) {
+                move(first(REGION_PROTECTED), REGION_PROBATION);
+            }
+        } else {
+            touch(node);
+        }
+        return node.value;
+    }
+
+    public synchronized void put(RenderKey key, byte[] value) {
+        long ttlMillis = ttls.get(key.getMode());
+        if (ttlMillis <= 0 || value.length > maxBytes - windowMax) return;
+        Node old = nodes.get(key);
+        if (old != null) {
+            remove(old);
+        }
+        if (++writes % SWEEP_INTERVAL == 0) {
+            sweep();
+        }
+        Node node = new Node(key, value, System.currentTimeMillis() + ttlMillis);
+        nodes.put(key, node);
+        add(node, REGION_WINDOW);
+        while (regionBytes[REGION_WINDOW] > windowMax) {
+            admit(first(REGION_WINDOW));
+        }
+    }
+
+    public synchronized int getEntries() {
+        return nodes.size();
+    }
+
+    public synchronized long getBytes() {
+        return regionBytes[REGION_WINDOW] + regionBytes[REGION_PROBATION] + regionBytes[REGION_PROTECTED];
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void admit(Node candidate) {
+        long mainMax = maxBytes - windowMax;
+        int candidateFreq = sketch.frequency(candidate.key.hashCode());
+        while (regionBytes[REGION_PROBATION] + regionBytes[REGION_PROTECTED] + candidate.value.length > mainMax) {
+            Node victim = first(REGION_PROBATION);
+            if (victim == null) {
+                victim = first(REGION_PROTECTED);
+            }
+            if (victim.isExpired(System.currentTimeMillis()) || candidateFreq > sketch.frequency(victim.key.hashCode())) {
+                remove(victim);
+                evictions++;
+            } else {
+                remove(candidate);
+                evictions++;
+                return;
+            }
+        }
+        move(candidate, REGION_PROBATION);
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        Iterator<Node> iter = nodes.values().iterator();
+        while (iter.hasNext()) {
+            Node node = iter.next();
+            if (node.isExpired(now)) {
+                iter.remove();
+                regions[node.region].remove(node.key);
+                regionBytes[node.region] -= node.value.length;
+            }
+        }
+    }
+
+    private Node first(int region) {
+        Iterator<Node> iter = regions[region].values().iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+
+    private void add(Node node, int region) {
+        node.region = region;
+        regions[region].put(node.key, node);
+        regionBytes[region] += node.value.length;
+    }
+
+    private void move(Node node, int region) {
+        regions[node.region].remove(node.key);
+        regionBytes[node.region] -= node.value.length;
+        add(node, region);
+    }
+
+    private void touch(Node node) {
+        regions[node.region].remove(node.key);
+        regions[node.region].put(node.key, node);
+    }
+
+    private void remove(Node node) {
+        nodes.remove(node.key);
+        regions[node.region].remove(node.key);
+        regionBytes[node.region] -= node.value.length;
+    }
+
+    private static class Node {
+        private final RenderKey key;
+        private final byte[] value;
+        private final long expiresAt;
+        private int region;
+
+        private Node(RenderKey key, byte[] value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+
+        private boolean isExpired(long now) {
+            return now >= expiresAt;
+        }
+    }
+
+    /**
+     * A count-min sketch of 4-bit counters. All counters are halved once the
+     * number of increments reaches ten times the table size, so frequencies
+     * reflect recent popularity rather than all-time popularity.
+     */
+    private static class FrequencySketch {
+        private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+        private static final long RESET_MASK = 0x7777777777777777L;
+        private final long[] table;
+        private final int tableMask;
+        private final int sampleSize;
+        private int size = 0;
+
+        private FrequencySketch(int expectedEntries) {
+            int len = Integer.highestOneBit(Math.max(1, expectedEntries - 1)) << 1;
+            table = new long[len];
+            tableMask = len - 1;
+            sampleSize = len * 10;
+        }
+
+        private int frequency(int hash) {
+            int start = (spread(hash) & 3) << 2;
+            int freq = Integer.MAX_VALUE;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int count = (int) ((table[index] >>> ((start + i) << 2)) & 0xF);
+                freq = Math.min(freq, count);
+            }
+            return freq;
+        }
+
+        private void increment(int hash) {
+            int start = (spread(hash) & 3) << 2;
+            boolean added = false;
+            for (int i = 0; i < 4; i++) {
+                int index = indexOf(hash, i);
+                int offset = (start + i) << 2;
+                long mask = 0xFL << offset;
+                if ((table[index] & mask) != mask) {
+                    table[index] += 1L << offset;
+                    added = true;
+                }
+            }
+            if (added && ++size == sampleSize) {
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = (table[i] >>> 1) & RESET_MASK;
+                }
+                size /= 2;
+            }
+        }
+
+        private int indexOf(int hash, int i) {
+            long h = (hash + SEEDS[i]) * SEEDS[i];
+            h += h >>> 32;
+            return ((int) h) & tableMask;
+        }
+
+        private static int spread(int x) {
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            x = ((x >>> 16) ^ x) * 0x45d9f3b;
+            return (x >>> 16) ^ x;
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.master.exception.OverloadedException;
+import com.surgeplay.visage.master.exception.RenderFailedException;
+import com.surgeplay.visage.util.HashedWheelTimer;
+import org.spacehq.mc.auth.data.GameProfile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Coalesces identical concurrent render requests. The first request for a
+ * {@link RenderKey} starts a flight that sends the RPC (retrying up to
+ * render.tries times); every request for the same key that arrives while the
+ * flight is running waits on the same result.
+ * <p>
+ * Every attempt of a flight carries the same token. If the flight finishes
+ * while other attempts may still be queued, slaves are told to skip them.
+ * <p>
+ * Once enough renders of the same mode and size have been seen, a flight
+ * that hasn't had a reply within the configured percentile of their latency
+ * sends one duplicate request, and takes whichever reply arrives first.
+ * <p>
+ * Hedges, retries and cancellations are sent from a small pool rather than
+ * from the timer or reply threads that trigger them, as publishing can block
+ * while the broker is applying flow control.
+ */
+public class RenderFlights {
+    private static final int SEND_THREADS = 4;
+
+    private final VisageMaster master;
+    private final int maxAttempts;
+    private final ConcurrentMap<RenderKey, ListenableFuture<RenderResponse>> flights = new ConcurrentHashMap<>();
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final LatencyTracker latencies;
+    private final HashedWheelTimer timer;
+    private final double hedgePercentile;
+    private final long timeoutMillis;
+    private final AdmissionControl admission;
+    private final Downscaler downscaler;
+    private final ExecutorService sender = Executors.newFixedThreadPool(SEND_THREADS,
+            new ThreadFactoryBuilder().setNameFormat("Render send thread #%d").setDaemon(true).build());
+
+    /**
+     * @param hedgePercentile the latency percentile after which to send a
+     *      duplicate request, or 0 to never send one
+     * @param admission limits the amount of flights at once, or null for no limit
+     * @param downscaler makes smaller renders out of larger ones, or null to
+     *      always render for real
+     */
+    public RenderFlights(VisageMaster master, int maxAttempts, double hedgePercentile, int minSamples, long timeoutMillis, AdmissionControl admission, Downscaler downscaler) {
+        this.admission = admission;
+        this.downscaler = downscaler;
+        this.master = master;
+        this.maxAttempts = maxAttempts;
+        this.hedgePercentile = hedgePercentile;
+        this.timeoutMillis = timeoutMillis;
+        this.latencies = new LatencyTracker(minSamples);
+        this.timer = master.getPendingRenders().getTimer();
+    }
+
+    /**
+     * @return a future that fails with {@link OverloadedException} if too many
+     *      renders are already in progress
+     */
+    public ListenableFuture<RenderResponse> render(final RenderKey key, GameProfile profile, byte[] skin) {
+        requests.incrementAndGet();
+        // joining a flight adds no load, so only new flights need a slot
+        ListenableFuture<RenderResponse> existing = flights.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        RenderKey source = downscaler == null ? null : downscaler.getSource(key);
+        if (source != null) {
+            return derive(key, source, profile, skin);
+        }
+        if (admission != null) {
+            try {
+                if (!admission.acquire()) {
+                    return Futures.immediateFailedFuture(new OverloadedException("Too many renders in progress"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        final Flight flight = new Flight(key, profile, skin);
+        existing = flights.putIfAbsent(key, flight.result);
+        if (existing != null) {
+            if (admission != null) admission.release(0);
+            return existing;
+        }
+        started.incrementAndGet();
+        final long start = System.nanoTime();
+        flight.result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                flights.remove(key, flight.result);
+                if (admission != null) {
+                    admission.release(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        flight.start();
+        return flight.result;
+    }
+
+    /**
+     * Shrinks the source render, rendering it first if it isn't cached.
+     * Derived flights count towards the coalescing stats like any other. A
+     * cached source takes a slot from admission control for the shrinking;
+     * otherwise the source's own flight takes one, which covers both.
+     */
+    private ListenableFuture<RenderResponse> derive(final RenderKey key, RenderKey source, GameProfile profile, byte[] skin) {
+        byte[] cached = master.getDefaultRenderAtlas().get(source);
+        if (cached == null) cached = master.getRenderCache().get(source);
+        if (cached == null) {
+            cached = master.getSharedRenderCache().get(source);
+            if (cached != null) master.getRenderCache().put(source, cached);
+        }
+        final boolean admitted = cached != null && admission != null;
+        if (admitted) {
+            try {
+                if (!admission.acquire()) {
+                    return Futures.immediateFailedFuture(new OverloadedException("Too many renders in progress"));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Futures.immediateFailedFuture(e);
+            }
+        }
+        final SettableFuture<RenderResponse> result = SettableFuture.create();
+        ListenableFuture<RenderResponse> existing = flights.putIfAbsent(key, result);
+        if (existing != null) {
+            if (admitted) admission.release(0);
+            return existing;
+        }
+        started.incrementAndGet();
+        final long start = System.nanoTime();
+        result.addListener(new Runnable() {
+            @Override
+            public void run() {
+                flights.remove(key, result);
+                if (admitted) {
+                    admission.release(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                }
+            }
+        }, MoreExecutors.directExecutor());
+        ListenableFuture<RenderResponse> src;
+        if (cached != null) {
+            RenderResponse resp = new RenderResponse();
+            resp.slave = "cache";
+            resp.png = cached;
+            src = Futures.immediateFuture(resp);
+        } else {
+            src = render(source, profile, skin);
+        }
+        Futures.addCallback(downscaler.derive(key, source, src), new FutureCallback<RenderResponse>() {
+            @Override
+            public void onSuccess(RenderResponse resp) {
+                cache(key, resp.png);
+                result.set(resp);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        });
+        return result;
+    }
+
+    private void cache(RenderKey key, byte[] png) {
+        if (!master.getDefaultRenderAtlas().put(key, png)) {
+            master.getRenderCache().put(key, png);
+            master.getSharedRenderCache().putAsync(key, png);
+        }
+    }
+
+    public Downscaler getDownscaler() {
+        return downscaler;
+    }
+
+    public void shutdown() {
+        sender.shutdownNow();
+    }
+
+    public int getInFlight() {
+        return flights.size();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getFlights() {
+        return started.get();
+    }
+
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return the amount of hedged requests that replied before the original
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    public AdmissionControl getAdmission() {
+        return admission;
+    }
+
+    public LatencyTracker getLatencies() {
+        return latencies;
+    }
+
+    /**
+     * @return the average amount of requests served by each flight
+     */
+    public double getCoalescingRatio() {
+        long flights = started.get();
+        return flights == 0 ? 1 : requests.get() / (double) flights;
+    }
+
+    private class Flight {
+        private final SettableFuture<RenderResponse> result = SettableFuture.create();
+        private final RenderKey key;
+        private final GameProfile profile;
+        private final byte[] skin;
+        private final String token = UUID.randomUUID().toString();
+        private final List<ListenableFuture<RenderResponse>> running = new ArrayList<>(2);
+        private int attempts = 0;
+        private boolean hedged = false;
+        private Throwable ex;
+
+        private Flight(RenderKey key, GameProfile profile, byte[] skin) {
+            this.key = key;
+            this.profile = profile;
+            this.skin = skin;
+        }
+
+        private void start() {
+            send(false);
+            if (hedgePercentile > 0) {
+                long delay = latencies.getPercentile(key.getMode(), key.getWidth(), key.getHeight(), hedgePercentile);
+                if (delay > 0 && delay < timeoutMillis) {
+                    timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            sender.execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    hedge();
+                                }
+                            });
+                        }
+                    }, delay, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private void hedge() {
+            synchronized (this) {
+                if (result.isDone() || hedged || running.isEmpty() || attempts >= maxAttempts) return;
+                hedged = true;
+            }
+            if (Visage.debug) Visage.log.finer("No reply for " + key + " yet, sending a hedged request");
+            hedges.incrementAndGet();
+            send(true);
+        }
+
+        private void send(boolean hedge) {
+            boolean inline;
+            synchronized (this) {
+                attempts++;
+                // retries and hedges always include the skin, as they probably go to a different slave
+                inline = attempts > 1;
+            }
+            int ss = key.getSupersampling();
+            ListenableFuture<RenderResponse> future = master.renderRpc(key.getMode(), key.getWidth() * ss, key.getHeight() * ss, ss, profile, skin, key.getSkin(), inline, key.getParams(), token);
+            synchronized (this) {
+                running.add(future);
+            }
+            Futures.addCallback(future, new Attempt(future, hedge), sender);
+        }
+
+        private class Attempt implements FutureCallback<RenderResponse> {
+            private final ListenableFuture<RenderResponse> future;
+            private final boolean hedge;
+            private final long start = System.nanoTime();
+
+            private Attempt(ListenableFuture<RenderResponse> future, boolean hedge) {
+                this.future = future;
+                this.hedge = hedge;
+            }
+
+            @Override
+            public void onSuccess(RenderResponse resp) {
+                synchronized (Flight.this) {
+                    running.remove(future);
+                }
+                if (resp == null) {
+                    retry();
+                    return;
+                }
+                latencies.record(key.getMode(), key.getWidth(), key.getHeight(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                if (result.isDone()) return;
+                cache(key, resp.png);
+                if (result.set(resp)) {
+                    if (hedge) hedgeWins.incrementAndGet();
+                    cancelRunning();
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                boolean others;
+                synchronized (Flight.this) {
+                    running.remove(future);
+                    others = !running.isEmpty();
+                    if (result.isDone() || t instanceof CancellationException) return;
+                    ex = t;
+                }
+                // let the other attempt finish before trying again
+                if (!others) {
+                    retry();
+                }
+            }
+        }
+
+        private void cancelRunning() {
+            List<ListenableFuture<RenderResponse>> losers;
+            synchronized (this) {
+                losers = new ArrayList<>(running);
+                running.clear();
+            }
+            if (losers.isEmpty()) return;
+            // also drops their pending replies rather than leaving them to expire
+            for (ListenableFuture<RenderResponse> f : losers) {
+                f.cancel(false);
+            }
+            master.cancelRender(token);
+        }
+
+        private void retry() {
+            boolean again;
+            Throwable ex;
+            synchronized (this) {
+                again = attempts < maxAttempts;
+                ex = this.ex;
+            }
+            if (again) {
+                send(false);
+            } else if (ex != null) {
+                result.setException(ex);
+            } else {
+                result.setException(new RenderFailedException("Could not render your request"));
+            }
+        }
+    }
+}
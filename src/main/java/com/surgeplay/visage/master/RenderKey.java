@@ -0,0 +1,125 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.escape.Escaper;
+import com.google.common.hash.Hashing;
+import com.google.common.net.UrlEscapers;
+import com.surgeplay.visage.RenderMode;
+
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Everything that determines the output of a render. Two requests with equal
+ * keys will always produce the same image, so the key's string form is used
+ * to address renders in every cache tier.
+ */
+public final class RenderKey {
+    // keeps a '&' or '=' in a parameter from reading as a separator
+    private static final Escaper ESCAPER = UrlEscapers.urlFormParameterEscaper();
+    private final RenderMode mode;
+    private final int width, height, supersampling;
+    private final String skin;
+    private final boolean slim;
+    private final Map<String, String[]> params;
+    private final String key;
+
+    public RenderKey(RenderMode mode, int width, int height, int supersampling, String skin, boolean slim, Map<String, String[]> params) {
+        this.mode = mode;
+        this.width = width;
+        this.height = height;
+        this.supersampling = supersampling;
+        this.skin = skin;
+        this.slim = slim;
+        this.params = new TreeMap<>(params);
+        StringBuilder sb = new StringBuilder();
+        sb.append(mode.name().toLowerCase()).append(':')
+                .append(width).append('x').append(height).append(':')
+                .append(supersampling).append("x:")
+                .append(skin).append(':')
+                .append(slim ? "slim" : "classic");
+        char sep = '?';
+        for (Entry<String, String[]> en : this.params.entrySet()) {
+            sb.append(sep).append(ESCAPER.escape(en.getKey()));
+            sep = '&';
+            for (String s : en.getValue()) {
+                sb.append('=').append(ESCAPER.escape(s));
+            }
+        }
+        key = sb.toString();
+    }
+
+    /**
+     * @return a stable identifier for the given skin's contents
+     */
+    public static String hashSkin(byte[] skin) {
+        return Hashing.murmur3_128().hashBytes(skin).toString();
+    }
+
+    public RenderMode getMode() {
+        return mode;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getSupersampling() {
+        return supersampling;
+    }
+
+    public String getSkin() {
+        return skin;
+    }
+
+    public boolean isSlim() {
+        return slim;
+    }
+
+    public Map<String, String[]> getParams() {
+        return params;
+    }
+
+    @Override
+    public int hashCode() {
+        return key.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof RenderKey && ((RenderKey) obj).key.equals(key);
+    }
+
+    @Override
+    public String toString() {
+        return key;
+    }
+}
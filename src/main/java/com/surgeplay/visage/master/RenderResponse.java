@@ -27,4 +27,6 @@ package com.surgeplay.visage.master;
 public class RenderResponse {
 	public String slave;
 	public byte[] png;
+	/** Microseconds the slave spent in each {@link com.surgeplay.visage.protocol.Stage}. */
+	public int[] timings;
 }
@@ -0,0 +1,54 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+
+import java.io.IOException;
+
+/**
+ * Carries render requests from the master to slaves, and their replies back.
+ */
+public interface RenderTransport {
+    /**
+     * @param token shared by every attempt at the same render
+     * @param timeoutMillis how long to wait for a reply; the request is
+     *      dropped if no slave has started it by then
+     * @return a future that fails with a
+     *      {@link com.surgeplay.visage.master.exception.RenderFailedException}
+     *      if the request could not be delivered or timed out
+     */
+    ListenableFuture<RenderReply> send(RenderRequest req, String token, long timeoutMillis);
+
+    /**
+     * Tells slaves to skip any requests with the given token that they
+     * haven't started yet.
+     */
+    void cancel(String token) throws IOException;
+
+    void shutdown() throws IOException;
+}
@@ -0,0 +1,148 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.google.common.base.Charsets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.surgeplay.visage.Visage;
+import redis.clients.jedis.Jedis;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * The Redis-backed render cache shared by every master pointed at the same
+ * Redis server. Entries are keyed by {@link RenderKey}, which includes a hash
+ * of the skin contents, so they never need to be invalidated.
+ */
+public class SharedRenderCache {
+    private static final long MEMORY_CHECK_INTERVAL = 10000;
+
+    private final VisageMaster master;
+    private final ExecutorService writer;
+    private final long ttlMillis, maxMemory;
+    private volatile boolean full = false;
+    private volatile long lastMemoryCheck = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong skippedWrites = new AtomicLong();
+
+    public SharedRenderCache(VisageMaster master, long ttlMillis, long maxMemory) {
+        this.master = master;
+        this.ttlMillis = ttlMillis;
+        this.maxMemory = maxMemory;
+        // writes are best-effort; drop them rather than back up behind a slow Redis
+        writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1024),
+                new ThreadFactoryBuilder().setNameFormat("Redis render writer").setDaemon(true).build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+    }
+
+    public byte[] get(RenderKey key) {
+        if (ttlMillis <= 0) return null;
+        try (Jedis j = master.getRenderJedis()) {
+            byte[] png = j.get(key.toString().getBytes(Charsets.UTF_8));
+            (png == null ? misses : hits).incrementAndGet();
+            return png;
+        } catch (Exception e) {
+            Visage.log.log(Level.WARNING, "An error occurred while reading a render from Redis", e);
+            return null;
+        }
+    }
+
+    public void put(RenderKey key, byte[] png) {
+        if (ttlMillis <= 0) return;
+        try (Jedis j = master.getRenderJedis()) {
+            if (isFull(j)) {
+                skippedWrites.incrementAndGet();
+                return;
+            }
+            j.psetex(key.toString().getBytes(Charsets.UTF_8), VisageMaster.toPsetexTtl(ttlMillis), png);
+            writes.incrementAndGet();
+        } catch (Exception e) {
+            Visage.log.log(Level.WARNING, "An error occurred while writing a render to Redis", e);
+        }
+    }
+
+    public void putAsync(final RenderKey key, final byte[] png) {
+        if (ttlMillis <= 0) return;
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                put(key, png);
+            }
+        });
+    }
+
+    public void shutdown() {
+        writer.shutdown();
+    }
+
+    /**
+     * Redis can't report memory use per database, so this compares the whole
+     * server's memory use against the limit; it is sampled at most once every
+     * ten seconds.
+     */
+    private boolean isFull(Jedis j) {
+        if (maxMemory <= 0) return false;
+        long now = System.currentTimeMillis();
+        if (now - lastMemoryCheck > MEMORY_CHECK_INTERVAL) {
+            lastMemoryCheck = now;
+            for (String line : j.info("memory").split("\r\n")) {
+                if (line.startsWith("used_memory:")) {
+                    boolean wasFull = full;
+                    full = Long.parseLong(line.substring("used_memory:".length()).trim()) >= maxMemory;
+                    if (full && !wasFull) {
+                        Visage.log.warning("Redis is using more than " + VisageMaster.humanReadableByteCount(maxMemory, false) + "; no longer caching renders in Redis");
+                    } else if (wasFull && !full) {
+                        Visage.log.info("Redis memory use is back under the limit; caching renders in Redis again");
+                    }
+                    break;
+                }
+            }
+        }
+        return full;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getWrites() {
+        return writes.get();
+    }
+
+    public long getSkippedWrites() {
+        return skippedWrites.get();
+    }
+}
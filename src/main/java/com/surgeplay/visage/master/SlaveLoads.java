@@ -0,0 +1,150 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.master;
+
+import com.surgeplay.visage.protocol.LoadReport;
+import com.surgeplay.visage.protocol.RenderProtocol;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps track of the load each slave last reported, and picks the slave
+ * a job should go straight to. Jobs sent since a slave's last report are
+ * counted against it, so a burst of jobs doesn't all go to the same slave
+ * before it gets a chance to report again.
+ */
+public class SlaveLoads {
+    private final String baseQueue;
+    private final long maxAgeNanos;
+    private final ConcurrentMap<String, Slave> slaves = new ConcurrentHashMap<>();
+    private final AtomicLong direct = new AtomicLong();
+    private final AtomicLong shared = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+
+    /**
+     * @param maxAgeMillis how long a report is trusted for; slaves that
+     *      haven't reported in this long are assumed to be gone
+     */
+    public SlaveLoads(String baseQueue, long maxAgeMillis) {
+        this.baseQueue = baseQueue;
+        this.maxAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxAgeMillis);
+    }
+
+    public void update(LoadReport report) {
+        Slave slave = slaves.get(report.id);
+        if (slave == null) {
+            slave = slaves.putIfAbsent(report.id, new Slave(report));
+            if (slave == null) return;
+        }
+        slave.update(report);
+    }
+
+    /**
+     * @param queue the shared queue the job would otherwise go to
+     * @return the queue of the slave that should get the job, or null if no
+     *      slave taking jobs from the given queue has a free render thread
+     */
+    public String pick(String queue) {
+        long now = System.nanoTime();
+        Slave best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (Iterator<Slave> iter = slaves.values().iterator(); iter.hasNext();) {
+            Slave slave = iter.next();
+            LoadReport report = slave.report;
+            if (now - slave.received > maxAgeNanos) {
+                iter.remove();
+                continue;
+            }
+            if (report.renderers == 0 || !report.queues.contains(queue)) continue;
+            int occupied = report.busy + report.waiting + slave.sent.get();
+            if (occupied >= report.renderers) continue;
+            // prefer idle slaves, then fast ones
+            double score = (occupied + 1) * (double) Math.max(report.latency, 1) / report.renderers;
+            if (score < bestScore) {
+                best = slave;
+                bestScore = score;
+            }
+        }
+        if (best == null) {
+            shared.incrementAndGet();
+            return null;
+        }
+        best.sent.incrementAndGet();
+        direct.incrementAndGet();
+        return RenderProtocol.getSlaveQueue(baseQueue, best.report.id);
+    }
+
+    /**
+     * Forgets the slave behind the given queue, after the broker couldn't
+     * deliver a job to it. It comes back with its next report, if any.
+     */
+    public void returned(String slaveQueue) {
+        returned.incrementAndGet();
+        String prefix = RenderProtocol.getSlaveQueue(baseQueue, "");
+        if (slaveQueue.startsWith(prefix)) {
+            slaves.remove(slaveQueue.substring(prefix.length()));
+        }
+    }
+
+    public int getSlaves() {
+        return slaves.size();
+    }
+
+    public long getDirect() {
+        return direct.get();
+    }
+
+    public long getShared() {
+        return shared.get();
+    }
+
+    /**
+     * @return the amount of jobs sent to a slave that turned out to be gone
+     */
+    public long getReturned() {
+        return returned.get();
+    }
+
+    private static class Slave {
+        public volatile LoadReport report;
+        public volatile long received;
+        public final AtomicInteger sent = new AtomicInteger();
+
+        public Slave(LoadReport report) {
+            update(report);
+        }
+
+        public void update(LoadReport report) {
+            this.report = report;
+            sent.set(0);
+            received = System.nanoTime();
+        }
+    }
+}
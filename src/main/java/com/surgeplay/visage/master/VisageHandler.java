@@ -26,10 +26,15 @@ package com.surgeplay.visage.master;
 
 import com.google.common.base.Charsets;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.surgeplay.visage.RenderMode;
 import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.master.exception.OverloadedException;
+import com.surgeplay.visage.protocol.Stage;
+import com.surgeplay.visage.util.ChannelPool;
 import com.surgeplay.visage.util.Profiles;
 import joptsimple.internal.Strings;
 import org.eclipse.jetty.server.Request;
@@ -38,19 +43,22 @@ import org.spacehq.mc.auth.data.GameProfile;
 import org.spacehq.mc.auth.data.GameProfile.Texture;
 import org.spacehq.mc.auth.data.GameProfile.TextureType;
 import org.spacehq.mc.auth.exception.profile.ProfileNotFoundException;
-import org.spacehq.mc.auth.service.ProfileService;
-import org.spacehq.mc.auth.service.ProfileService.ProfileLookupCallback;
 import org.spacehq.mc.auth.service.SessionService;
 import org.spacehq.mc.auth.util.UUIDSerializer;
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
 import java.net.URL;
 import java.util.*;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.regex.Matcher;
@@ -66,18 +74,23 @@ public class VisageHandler extends AbstractHandler {
     private static final long ONE_DAY = 1000 * 60 * 60 * 24;
     private static final long THIRTY_DAYS = ONE_DAY * 30;
 
+    private static final String TEXTURE_URL = "http://textures.minecraft.net/texture/";
+    private static final String STEVE_ID = DefaultRenderAtlas.STEVE_ID;
+    private static final String ALEX_ID = DefaultRenderAtlas.ALEX_ID;
+
     private final VisageMaster master;
     private final SessionService ss = new SessionService();
-    private final ProfileService gpr = new ProfileService();
     private final Gson gson = new GsonBuilder()
             .registerTypeAdapter(UUID.class, new UUIDSerializer())
             .create();
 
-    private final boolean cacheHeader, slaveHeader, reportExceptions, usernames;
-    private final int supersampling, minSize, defaultSize, maxSize, maxAttempts, granularity;
-    private final long resolverTtlMillis, skinTtlMillis;
+    private final boolean cacheHeader, slaveHeader, reportExceptions, stats, usernames;
+    private final int supersampling, minSize, defaultSize, maxSize, granularity;
+    private final long skinTtlMillis;
+    private final int skinContentTtlSeconds;
     private final String baseUrl;
     private final EnumSet<RenderMode> allowedModes = EnumSet.noneOf(RenderMode.class);
+    private final Set<String> allowedParams;
     private final String allowedModesS;
 
     public VisageHandler(VisageMaster master) {
@@ -86,21 +99,24 @@ public class VisageHandler extends AbstractHandler {
         slaveHeader = debug.contains("slave");
         cacheHeader = debug.contains("cache");
         reportExceptions = debug.contains("error");
+        stats = debug.contains("stats");
         if (slaveHeader || cacheHeader) {
             Visage.log.warning("Visage is set to include debugging information in HTTP headers. This should be disabled in production.");
         }
         if (reportExceptions) {
             Visage.log.warning("Visage is set to include exception stack traces in failed requests. This can expose internal system information such as authentication information.");
         }
+        if (stats) {
+            Visage.log.warning("Visage is set to serve internal counters at /stats. This should be disabled in production.");
+        }
         usernames = master.config.getBoolean("lookup-names");
         supersampling = master.config.getInt("render.supersampling");
         minSize = master.config.getInt("render.min-size");
         defaultSize = master.config.getInt("render.default-size");
         maxSize = master.config.getInt("render.max-size");
-        maxAttempts = master.config.getInt("render.tries");
         granularity = master.config.getInt("render.size-granularity");
-        resolverTtlMillis = master.config.getDuration("redis.resolver-ttl", TimeUnit.MILLISECONDS);
         skinTtlMillis = master.config.getDuration("redis.skin-ttl", TimeUnit.MILLISECONDS);
+        skinContentTtlSeconds = (int) Math.min(Integer.MAX_VALUE, master.config.getDuration("redis.skin-content-ttl", TimeUnit.SECONDS));
         baseUrl = master.config.getString("base-url");
         List<String> modes = master.config.getStringList("modes");
         for (String s : modes) {
@@ -110,6 +126,7 @@ public class VisageHandler extends AbstractHandler {
             }
         }
         allowedModesS = Strings.join(modes, ", ");
+        allowedParams = new HashSet<>(master.config.getStringList("parameters"));
     }
 
     @Override
@@ -119,6 +136,10 @@ public class VisageHandler extends AbstractHandler {
             response.sendError(405);
             return;
         }
+        if (stats && "/stats".equals(target)) {
+            writeStats(response);
+            return;
+        }
         RenderMode mode = RenderMode.FULL;
         String subject;
         final List<String> missed = cacheHeader ? new ArrayList<String>() : null;
@@ -201,10 +222,21 @@ public class VisageHandler extends AbstractHandler {
         }
 
         UUID uuid = null;
-        if (subject.equals("X-Steve")) {
-            uuid = new UUID(0 | (8 << 12), 0);
-        } else if (subject.equals("X-Alex")) {
-            uuid = new UUID(0 | (8 << 12), 1);
+        if (subject.equals("X-Steve") || subject.equals("X-Alex")) {
+            uuid = subject.equals("X-Steve") ? DefaultRenderAtlas.STEVE_UUID : DefaultRenderAtlas.ALEX_UUID;
+            // these always use a default skin, so there's nothing to look up
+            GameProfile profile = new GameProfile(uuid, subject.substring(2));
+            String skinId = getDefaultSkinId(profile);
+            byte[] png;
+            if (mode == RenderMode.SKIN) {
+                png = STEVE_ID.equals(skinId) ? master.steve : master.alex;
+            } else {
+                png = master.getDefaultRenderAtlas().get(new RenderKey(mode, width, height, supersampling, skinId, Profiles.isSlim(profile), canonicalize(request.getParameterMap())));
+            }
+            if (png != null) {
+                write(response, missed, png, "atlas");
+                return;
+            }
         } else {
             Matcher dashless = DASHLESS_UUID_PATTERN.matcher(subject);
             if (dashless.matches()) {
@@ -213,50 +245,28 @@ public class VisageHandler extends AbstractHandler {
                 if (usernames) {
                     Matcher username = USERNAME_PATTERN.matcher(subject);
                     if (username.matches()) {
+                        if (master.getNegativeCache().isNearMissingName(subject)) {
+                            response.sendError(400, "Could not find a player named '" + subject + "'");
+                            return;
+                        }
                         try (Jedis j = master.getResolverJedis();) {
-                            String resp = j.get(subject);
+                            Pipeline reads = j.pipelined();
+                            Response<String> resolved = reads.get(subject.toLowerCase());
+                            Response<Boolean> missingName = reads.exists(NegativeCache.nameKey(subject));
+                            reads.sync();
+                            String resp = resolved.get();
                             if (resp != null) {
                                 response.sendRedirect(baseUrl + "/" + modeStr + "/" + height + "/" + resp.replace("-", ""));
                                 return;
+                            } else if (master.getNegativeCache().isMissingName(subject, missingName.get())) {
+                                response.sendError(400, "Could not find a player named '" + subject + "'");
+                                return;
                             } else {
                                 if (cacheHeader) missed.add("username");
-                                final Object[] result = new Object[1];
-                                gpr.findProfilesByName(new String[]{subject}, new ProfileLookupCallback() {
-                                    @Override
-                                    public void onProfileLookupSucceeded(GameProfile profile) {
-                                        result[0] = profile.getId();
-                                    }
-
-                                    @Override
-                                    public void onProfileLookupFailed(GameProfile profile, Exception e) {
-                                        result[0] = e;
-                                    }
-                                });
-                                if (result[0] == null || result[0] instanceof ProfileNotFoundException) {
-                                    response.sendError(400, "Could not find a player named '" + subject + "'");
-                                    return;
-                                } else if (result[0] instanceof Exception) {
-                                    Exception e = (Exception) result[0];
-                                    Visage.log.log(Level.WARNING, "An error occurred while looking up a player name", e);
-                                    if (reportExceptions) {
-                                        response.setContentType("text/plain");
-                                        e.printStackTrace(response.getWriter());
-                                        response.setStatus(500);
-                                        response.flushBuffer();
-                                    } else {
-                                        response.sendError(500, "Could not render your request");
-                                    }
-                                    return;
-                                } else if (result[0] instanceof UUID) {
-                                    uuid = (UUID) result[0];
-                                    response.sendRedirect(baseUrl + "/" + modeStr + "/" + height + "/" + uuid.toString().replace("-", ""));
-                                    j.set(subject, uuid.toString());
-                                    j.pexpire(subject, resolverTtlMillis);
-                                    return;
-                                } else {
-                                    response.sendError(500, "Could not render your request");
-                                    return;
-                                }
+                                AsyncContext async = request.startAsync();
+                                async.setTimeout(0);
+                                Futures.addCallback(master.getNameResolver().resolve(subject), new ResolveWriter(async, subject, modeStr, height), containerThreads(async));
+                                return;
                             }
                         }
                     } else {
@@ -274,59 +284,109 @@ public class VisageHandler extends AbstractHandler {
             response.sendError(500, "Could not render your request");
         }
 
-        width *= supersampling;
-        height *= supersampling;
-
         GameProfile profile = new GameProfile(uuid, "<unknown>");
         byte[] skin;
-        try (Jedis sj = master.getSkinJedis()) {
-            String resp = sj.get(uuid.toString() + ":profile");
-            byte[] skinResp = sj.get((uuid.toString() + ":skin").getBytes(Charsets.UTF_8));
-            if (resp != null) {
-                profile = gson.fromJson(resp, GameProfile.class);
-            } else {
-                if (uuid.version() == 8) {
-                    profile = new GameProfile(uuid, subject.substring(2));
+        String skinId;
+        // skip Redis entirely for UUIDs recently found to have no profile
+        boolean missing = uuid.version() != 8 && master.getNegativeCache().isNearMissingProfile(uuid);
+        if (missing) {
+            skinId = getDefaultSkinId(profile);
+            skin = STEVE_ID.equals(skinId) ? master.steve : master.alex;
+        } else {
+            try (Jedis sj = master.getSkinJedis()) {
+                String profileKey = uuid.toString() + ":profile";
+                byte[] pointerKey = (uuid.toString() + ":skin").getBytes(Charsets.UTF_8);
+                Pipeline reads = sj.pipelined();
+                Response<String> profileResp = reads.get(profileKey);
+                Response<byte[]> pointerResp = reads.get(pointerKey);
+                Response<Boolean> missingResp = reads.exists(NegativeCache.profileKey(uuid));
+                reads.sync();
+                String profileWrite = null;
+                String pointerWrite = null;
+                byte[] skinWrite = null;
+                boolean markMissing = false;
+                String resp = profileResp.get();
+                if (resp != null) {
+                    profile = gson.fromJson(resp, GameProfile.class);
                 } else {
-                    if (cacheHeader) missed.add("profile");
-                    profile = ss.fillProfileProperties(profile);
-                    sj.set(uuid.toString() + ":profile", gson.toJson(profile));
-                    sj.pexpire(uuid.toString() + ":profile", skinTtlMillis);
-                }
-            }
-            if (skinResp != null && skinResp.length > 3) {
-                skin = skinResp;
-            } else {
-                if (cacheHeader) missed.add("skin");
-                Map<TextureType, Texture> tex = ss.fillProfileTextures(profile, false).getTextures();
-                if (tex.containsKey(TextureType.SKIN)) {
-                    Texture skinTex = tex.get(TextureType.SKIN);
-                    try (InputStream in = new URL(skinTex.getURL()).openStream()) {
-                        skin = ByteStreams.toByteArray(in);
+                    if (uuid.version() == 8) {
+                        profile = new GameProfile(uuid, subject.substring(2));
+                    } else if (master.getNegativeCache().isMissingProfile(uuid, missingResp.get())) {
+                        missing = true;
+                    } else {
+                        if (cacheHeader) missed.add("profile");
+                        try {
+                            profile = ss.fillProfileProperties(profile);
+                            profileWrite = gson.toJson(profile);
+                        } catch (ProfileNotFoundException e) {
+                            missing = markMissing = true;
+                        }
                     }
+                }
+                byte[] pointer = pointerResp.get();
+                String skinUrl = null;
+                if (missing) {
+                    skinId = getDefaultSkinId(profile);
+                } else if (pointer != null && isPng(pointer)) {
+                    // stored before skins were content-addressed
+                    skinId = RenderKey.hashSkin(pointer);
+                } else if (pointer != null) {
+                    skinId = new String(pointer, Charsets.UTF_8);
                 } else {
-                    if (Profiles.isSlim(profile)) {
-                        skin = master.alex;
+                    if (cacheHeader) missed.add("skin");
+                    Map<TextureType, Texture> tex = ss.fillProfileTextures(profile, false).getTextures();
+                    if (tex.containsKey(TextureType.SKIN)) {
+                        skinUrl = tex.get(TextureType.SKIN).getURL();
+                        skinId = skinUrl.substring(skinUrl.lastIndexOf('/') + 1);
                     } else {
-                        skin = master.steve;
+                        skinId = getDefaultSkinId(profile);
                     }
+                    pointerWrite = skinId;
                 }
-                sj.set((uuid.toString() + ":skin").getBytes(Charsets.UTF_8), skin);
-                sj.pexpire(uuid.toString() + ":skin", skinTtlMillis);
-            }
-        } catch (Exception e) {
-            Visage.log.log(Level.WARNING, "An error occurred while resolving texture data", e);
-            if (reportExceptions) {
-                response.setContentType("text/plain");
-                e.printStackTrace(response.getWriter());
-                response.setStatus(500);
-                response.flushBuffer();
-                return;
-            } else {
-                if (Profiles.isSlim(profile)) {
+                if (STEVE_ID.equals(skinId)) {
+                    skin = master.steve;
+                } else if (ALEX_ID.equals(skinId)) {
                     skin = master.alex;
+                } else if (pointer != null && isPng(pointer)) {
+                    skin = pointer;
                 } else {
-                    skin = master.steve;
+                    skin = sj.get(("skin:" + skinId).getBytes(Charsets.UTF_8));
+                    if (skin == null) {
+                        if (cacheHeader) missed.add("skin-data");
+                        if (skinUrl == null) {
+                            skinUrl = TEXTURE_URL + skinId;
+                        }
+                        try (InputStream in = new URL(skinUrl).openStream()) {
+                            skin = ByteStreams.toByteArray(in);
+                        }
+                        skinWrite = skin;
+                    }
+                }
+                Pipeline writes = sj.pipelined();
+                if (profileWrite != null) {
+                    writes.psetex(profileKey, VisageMaster.toPsetexTtl(skinTtlMillis), profileWrite);
+                }
+                if (pointerWrite != null) {
+                    writes.psetex(pointerKey, VisageMaster.toPsetexTtl(skinTtlMillis), pointerWrite.getBytes(Charsets.UTF_8));
+                }
+                if (skinWrite != null) {
+                    writes.setex(("skin:" + skinId).getBytes(Charsets.UTF_8), skinContentTtlSeconds, skinWrite);
+                }
+                if (markMissing) {
+                    master.getNegativeCache().markMissingProfile(writes, uuid);
+                }
+                writes.sync();
+            } catch (Exception e) {
+                Visage.log.log(Level.WARNING, "An error occurred while resolving texture data", e);
+                if (reportExceptions) {
+                    response.setContentType("text/plain");
+                    e.printStackTrace(response.getWriter());
+                    response.setStatus(500);
+                    response.flushBuffer();
+                    return;
+                } else {
+                    skinId = getDefaultSkinId(profile);
+                    skin = STEVE_ID.equals(skinId) ? master.steve : master.alex;
                 }
             }
         }
@@ -336,39 +396,186 @@ public class VisageHandler extends AbstractHandler {
             return;
         }
 
-        RenderResponse resp = null;
-        Exception ex = null;
-        int attempts = 0;
-        while (attempts < maxAttempts) {
-            attempts++;
+        RenderKey key = new RenderKey(mode, width, height, supersampling, skinId, Profiles.isSlim(profile), canonicalize(request.getParameterMap()));
+        byte[] cached = master.getDefaultRenderAtlas().get(key);
+        if (cached != null) {
+            write(response, missed, cached, "atlas");
+            return;
+        }
+        cached = master.getRenderCache().get(key);
+        if (cached != null) {
+            write(response, missed, cached, "cache");
+            return;
+        }
+        if (cacheHeader) missed.add("local-render");
+        if (mode == RenderMode.FACE) {
+            // cheaper to draw again than to fetch from Redis, let alone a slave
+            byte[] png;
             try {
-                resp = master.renderRpc(mode, width, height, supersampling, profile, skin, request.getParameterMap());
+                png = master.getFaceRenderer().render(skinId, skin, width, height);
             } catch (Exception e) {
-                ex = e;
-                continue;
+                Visage.log.log(Level.WARNING, "An error occurred while drawing a face", e);
+                if (reportExceptions) {
+                    response.setContentType("text/plain");
+                    e.printStackTrace(response.getWriter());
+                    response.setStatus(500);
+                    response.flushBuffer();
+                } else {
+                    response.sendError(500, "Could not render your request");
+                }
+                return;
             }
-            if (resp == null) {
-                continue;
+            if (!master.getDefaultRenderAtlas().put(key, png)) {
+                master.getRenderCache().put(key, png);
             }
-            write(response, missed, resp.png, resp.slave);
+            write(response, missed, png, "master");
             return;
         }
-        if (ex != null) {
-            Visage.log.log(Level.WARNING, "An error occurred while rendering a request", ex);
-            if (reportExceptions) {
-                response.setContentType("text/plain");
-                ex.printStackTrace(response.getWriter());
-                response.setStatus(500);
-                response.flushBuffer();
-            } else {
-                response.sendError(500, "Could not render your request");
-            }
+        cached = master.getSharedRenderCache().get(key);
+        if (cached != null) {
+            master.getRenderCache().put(key, cached);
+            write(response, missed, cached, "cache");
             return;
-        } else if (resp == null) {
-            response.setContentType("text/plain;charset=utf-8");
-            response.getWriter().println("Could not render your request");
-            response.setStatus(500);
-            response.flushBuffer();
+        }
+        if (cacheHeader) missed.add("render");
+
+        AsyncContext async = request.startAsync();
+        async.setTimeout(0);
+        Futures.addCallback(master.getRenderFlights().render(key, profile, skin), new RenderWriter(async, missed), containerThreads(async));
+    }
+
+    /**
+     * Runs callbacks on the container's threads, so writing to a slow client
+     * doesn't hold up whichever thread completed the future.
+     */
+    private static Executor containerThreads(final AsyncContext async) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                async.start(command);
+            }
+        };
+    }
+
+    private static String getDefaultSkinId(GameProfile profile) throws IOException {
+        return Profiles.isSlim(profile) ? ALEX_ID : STEVE_ID;
+    }
+
+    private static boolean isPng(byte[] data) {
+        return data.length > 3 && (data[0] & 0xFF) == 0x89 && data[1] == 'P' && data[2] == 'N' && data[3] == 'G';
+    }
+
+    private Map<String, String[]> canonicalize(Map<String, String[]> params) {
+        Map<String, String[]> out = new TreeMap<>();
+        for (Map.Entry<String, String[]> en : params.entrySet()) {
+            if (allowedParams.contains(en.getKey())) {
+                out.put(en.getKey(), en.getValue());
+            }
+        }
+        return out;
+    }
+
+    private class ResolveWriter implements FutureCallback<UUID> {
+        private final AsyncContext async;
+        private final String subject, modeStr;
+        private final int height;
+
+        public ResolveWriter(AsyncContext async, String subject, String modeStr, int height) {
+            this.async = async;
+            this.subject = subject;
+            this.modeStr = modeStr;
+            this.height = height;
+        }
+
+        @Override
+        public void onSuccess(UUID uuid) {
+            try {
+                ((HttpServletResponse) async.getResponse()).sendRedirect(baseUrl + "/" + modeStr + "/" + height + "/" + uuid.toString().replace("-", ""));
+            } catch (Exception e) {
+                Visage.log.log(Level.WARNING, "An error occurred while writing a redirect", e);
+            } finally {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable t) {
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            try {
+                if (t instanceof ProfileNotFoundException) {
+                    response.sendError(400, "Could not find a player named '" + subject + "'");
+                    return;
+                }
+                Visage.log.log(Level.WARNING, "An error occurred while looking up a player name", t);
+                if (reportExceptions) {
+                    response.setContentType("text/plain");
+                    t.printStackTrace(response.getWriter());
+                    response.setStatus(500);
+                    response.flushBuffer();
+                } else {
+                    response.sendError(500, "Could not render your request");
+                }
+            } catch (Exception e) {
+                Visage.log.log(Level.WARNING, "An error occurred while reporting a failed lookup", e);
+            } finally {
+                async.complete();
+            }
+        }
+    }
+
+    private class RenderWriter implements FutureCallback<RenderResponse> {
+        private final AsyncContext async;
+        private final List<String> missed;
+
+        public RenderWriter(AsyncContext async, List<String> missed) {
+            this.async = async;
+            this.missed = missed;
+        }
+
+        @Override
+        public void onSuccess(RenderResponse resp) {
+            try {
+                HttpServletResponse response = (HttpServletResponse) async.getResponse();
+                if (slaveHeader && resp.timings != null) {
+                    StringBuilder sb = new StringBuilder();
+                    for (Stage stage : Stage.values()) {
+                        if (sb.length() > 0) sb.append(", ");
+                        sb.append(stage.lowerName()).append('=').append(resp.timings[stage.ordinal()]).append("us");
+                    }
+                    response.setHeader("X-Visage-Slave-Timings", sb.toString());
+                }
+                write(response, missed, resp.png, resp.slave);
+            } catch (Exception e) {
+                Visage.log.log(Level.WARNING, "An error occurred while writing a render", e);
+            } finally {
+                async.complete();
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable ex) {
+            HttpServletResponse response = (HttpServletResponse) async.getResponse();
+            try {
+                if (ex instanceof OverloadedException) {
+                    if (Visage.debug) Visage.log.finer("Turning away a render, too many in progress");
+                    response.setHeader("Retry-After", Integer.toString(master.getRenderFlights().getAdmission().getRetryAfterSeconds()));
+                    response.sendError(503, "Too many renders in progress, please try again later");
+                    return;
+                }
+                Visage.log.log(Level.WARNING, "An error occurred while rendering a request", ex);
+                if (reportExceptions) {
+                    response.setContentType("text/plain");
+                    ex.printStackTrace(response.getWriter());
+                    response.setStatus(500);
+                    response.flushBuffer();
+                } else {
+                    response.sendError(500, "Could not render your request");
+                }
+            } catch (Exception e) {
+                Visage.log.log(Level.WARNING, "An error occurred while reporting a failed render", e);
+            } finally {
+                async.complete();
+            }
         }
     }
 
@@ -377,6 +584,83 @@ public class VisageHandler extends AbstractHandler {
         response.setHeader("Location", path);
     }
 
+    private void writeStats(HttpServletResponse response) throws IOException {
+        PendingRenders pending = master.getPendingRenders();
+        response.setContentType("text/plain;charset=utf-8");
+        PrintWriter w = response.getWriter();
+        w.println("renders.in-flight: " + pending.getInFlight());
+        w.println("renders.completed: " + pending.getCompleted());
+        w.println("renders.expired: " + pending.getExpired());
+        w.println("renders.late-arrivals: " + pending.getLateArrivals());
+        w.println("renders.cancelled: " + pending.getCancelled());
+        w.println("renders.cancels-sent: " + master.getCancels());
+        if (master.getTransport() instanceof RabbitRenderTransport) {
+            RabbitRenderTransport rabbit = (RabbitRenderTransport) master.getTransport();
+            ChannelPool publishers = rabbit.getPublishers();
+            w.println("rabbitmq.published: " + publishers.getPublished());
+            w.println("rabbitmq.confirmed: " + publishers.getConfirmed());
+            w.println("rabbitmq.rejected: " + publishers.getRejected());
+            w.println("rabbitmq.unconfirmed: " + publishers.getUnconfirmed());
+            SlaveLoads loads = rabbit.getLoads();
+            if (loads != null) {
+                w.println("routing.slaves: " + loads.getSlaves());
+                w.println("routing.direct: " + loads.getDirect());
+                w.println("routing.shared: " + loads.getShared());
+                w.println("routing.returned: " + loads.getReturned());
+            }
+        }
+        w.println("skins.inlined: " + master.getSkinsInlined());
+        w.println("skins.referenced: " + master.getSkinsReferenced());
+        w.println("skins.slave-misses: " + master.getSkinMisses());
+        RenderFlights flights = master.getRenderFlights();
+        w.println("flights.in-flight: " + flights.getInFlight());
+        w.println("flights.requests: " + flights.getRequests());
+        w.println("flights.started: " + flights.getFlights());
+        w.println("flights.coalescing-ratio: " + String.format("%.3f", flights.getCoalescingRatio()));
+        AdmissionControl admission = flights.getAdmission();
+        if (admission != null) {
+            w.println("admission.limit: " + admission.getLimit());
+            w.println("admission.in-flight: " + admission.getInFlight());
+            w.println("admission.waiting: " + admission.getWaiting());
+            w.println("admission.admitted: " + admission.getAdmitted());
+            w.println("admission.queued: " + admission.getQueued());
+            w.println("admission.rejected: " + admission.getRejected());
+        }
+        w.println("flights.hedges: " + flights.getHedges());
+        w.println("flights.hedge-wins: " + flights.getHedgeWins());
+        if (flights.getDownscaler() != null) {
+            w.println("flights.downscaled: " + flights.getDownscaler().getDerived());
+        }
+        for (Map.Entry<String, Long> en : flights.getLatencies().getPercentiles(0.95).entrySet()) {
+            w.println("latency." + en.getKey() + ".p95: " + en.getValue());
+        }
+        NameResolver resolver = master.getNameResolver();
+        w.println("names.lookups: " + resolver.getLookups());
+        w.println("names.coalesced: " + resolver.getCoalesced());
+        w.println("names.upstream-requests: " + resolver.getBatches());
+        NegativeCache negative = master.getNegativeCache();
+        w.println("negative.near-hits: " + negative.getNearHits());
+        w.println("negative.redis-hits: " + negative.getRedisHits());
+        w.println("negative.marks: " + negative.getMarks());
+        DefaultRenderAtlas atlas = master.getDefaultRenderAtlas();
+        w.println("cache.atlas.entries: " + atlas.getEntries() + "/" + atlas.getCapacity());
+        w.println("cache.atlas.bytes: " + atlas.getBytes());
+        w.println("cache.atlas.hits: " + atlas.getHits());
+        RenderCache cache = master.getRenderCache();
+        w.println("cache.local.entries: " + cache.getEntries());
+        w.println("cache.local.bytes: " + cache.getBytes() + "/" + cache.getMaxBytes());
+        w.println("cache.local.hits: " + cache.getHits());
+        w.println("cache.local.misses: " + cache.getMisses());
+        w.println("cache.local.evictions: " + cache.getEvictions());
+        SharedRenderCache shared = master.getSharedRenderCache();
+        w.println("cache.redis.hits: " + shared.getHits());
+        w.println("cache.redis.misses: " + shared.getMisses());
+        w.println("cache.redis.writes: " + shared.getWrites());
+        w.println("cache.redis.skipped-writes: " + shared.getSkippedWrites());
+        response.setStatus(200);
+        response.flushBuffer();
+    }
+
     private void write(HttpServletResponse response, List<String> missed, byte[] png, String slave) throws IOException {
         if (slaveHeader) {
             response.setHeader("X-Visage-Slave", slave);
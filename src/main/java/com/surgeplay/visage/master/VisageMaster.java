@@ -24,15 +24,13 @@
  */
 package com.surgeplay.visage.master;
 
-import com.google.common.collect.Maps;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.io.Closer;
-import com.rabbitmq.client.AMQP.BasicProperties;
-import com.rabbitmq.client.Channel;
-import com.rabbitmq.client.Connection;
-import com.rabbitmq.client.ConnectionFactory;
-import com.rabbitmq.client.QueueingConsumer;
-import com.rabbitmq.client.QueueingConsumer.Delivery;
 import com.surgeplay.visage.RenderMode;
 import com.surgeplay.visage.Visage;
 import com.surgeplay.visage.VisageRunner;
@@ -40,8 +38,9 @@ import com.surgeplay.visage.master.exception.NoSlavesAvailableException;
 import com.surgeplay.visage.master.exception.RenderFailedException;
 import com.surgeplay.visage.master.glue.HeaderHandler;
 import com.surgeplay.visage.master.glue.LogShim;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
 import com.surgeplay.visage.slave.VisageSlave;
-import com.surgeplay.visage.util.Profiles;
 import com.typesafe.config.Config;
 import org.eclipse.jetty.server.AsyncNCSARequestLog;
 import org.eclipse.jetty.server.Server;
@@ -52,26 +51,23 @@ import org.spacehq.mc.auth.data.GameProfile;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
 import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Protocol;
 
 import java.io.*;
 import java.net.InetSocketAddress;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.UUID;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
-import java.util.zip.DeflaterOutputStream;
 
 public class VisageMaster extends Thread implements VisageRunner {
     public VisageSlave fallback;
     public Config config;
-    public Connection conn;
-    public Channel channel;
     public byte[] steve, alex;
-    private JedisPool pool;
-    private int resolverNum, skinNum;
-    private String password;
+    private JedisPool resolverPool, skinPool, renderPool;
     private boolean run = true;
 
     public VisageMaster(Config config) {
@@ -79,24 +75,71 @@ public class VisageMaster extends Thread implements VisageRunner {
         this.config = config;
     }
 
+    public PendingRenders getPendingRenders() {
+        return pending;
+    }
+
+    public RenderCache getRenderCache() {
+        return renderCache;
+    }
+
+    public SharedRenderCache getSharedRenderCache() {
+        return sharedRenderCache;
+    }
+
+    public DefaultRenderAtlas getDefaultRenderAtlas() {
+        return defaultRenderAtlas;
+    }
+
+    public FaceRenderer getFaceRenderer() {
+        return faceRenderer;
+    }
+
+    public RenderFlights getRenderFlights() {
+        return renderFlights;
+    }
+
+    public NameResolver getNameResolver() {
+        return nameResolver;
+    }
+
+    public NegativeCache getNegativeCache() {
+        return negativeCache;
+    }
+
+    public RenderTransport getTransport() {
+        return transport;
+    }
+
+    public long getSkinsInlined() {
+        return skinsInlined.get();
+    }
+
+    public long getSkinsReferenced() {
+        return skinsReferenced.get();
+    }
+
+    public long getSkinMisses() {
+        return skinMisses.get();
+    }
+
     public Jedis getResolverJedis() {
-        Jedis j = getJedis();
-        j.select(resolverNum);
-        return j;
+        return resolverPool.getResource();
     }
 
     public Jedis getSkinJedis() {
-        Jedis j = getJedis();
-        j.select(skinNum);
-        return j;
+        return skinPool.getResource();
     }
 
-    public Jedis getJedis() {
-        Jedis j = pool.getResource();
-        if (password != null) {
-            j.auth(password);
-        }
-        return j;
+    public Jedis getRenderJedis() {
+        return renderPool.getResource();
+    }
+
+    /**
+     * Clamps a TTL to the range accepted by PSETEX.
+     */
+    public static int toPsetexTtl(long millis) {
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, millis));
     }
 
     @Override
@@ -128,6 +171,50 @@ public class VisageMaster extends Thread implements VisageRunner {
                 poweredBy = null;
             }
 
+            EnumMap<RenderMode, Long> renderTtls = new EnumMap<>(RenderMode.class);
+            for (RenderMode mode : RenderMode.values()) {
+                String path = "cache.mode-ttl." + mode.name().toLowerCase();
+                renderTtls.put(mode, config.getDuration(config.hasPath(path) ? path : "cache.ttl", TimeUnit.MILLISECONDS));
+            }
+            sentSkins = CacheBuilder.newBuilder()
+                    .expireAfterWrite(config.getDuration("render.skin-reference-ttl", TimeUnit.MILLISECONDS), TimeUnit.MILLISECONDS)
+                    .maximumSize(100000)
+                    .build();
+            renderCache = new RenderCache(config.getBytes("cache.max-size"), renderTtls);
+            faceRenderer = new FaceRenderer(config.getInt("render.png-compression"));
+            EnumSet<RenderMode> atlasModes = EnumSet.noneOf(RenderMode.class);
+            String atlasMode = config.getString("cache.default-renders");
+            if (!"off".equals(atlasMode)) {
+                for (String s : config.getStringList("modes")) {
+                    try {
+                        atlasModes.add(RenderMode.valueOf(s.toUpperCase()));
+                    } catch (IllegalArgumentException ignore) {
+                    }
+                }
+            }
+            defaultRenderAtlas = new DefaultRenderAtlas(atlasModes, config.getInt("render.min-size"), config.getInt("render.max-size"),
+                    config.getInt("render.size-granularity"), config.getInt("render.supersampling"));
+            sharedRenderCache = new SharedRenderCache(this, config.getDuration("redis.render-ttl", TimeUnit.MILLISECONDS), config.getBytes("redis.render-max-memory"));
+            AdmissionControl admission = null;
+            if (config.getBoolean("admission.enable")) {
+                admission = new AdmissionControl(config.getInt("admission.min-limit"), config.getInt("admission.max-limit"),
+                        config.getDuration("admission.target-latency", TimeUnit.MILLISECONDS),
+                        config.getInt("admission.queue-size"), config.getDuration("admission.queue-timeout", TimeUnit.MILLISECONDS));
+            }
+            Downscaler downscaler = null;
+            if (config.getBoolean("render.downscale.enable")) {
+                int threads = config.getInt("render.downscale.threads");
+                downscaler = new Downscaler(config.getInt("render.max-size"), config.getInt("render.size-granularity"), config.getInt("render.downscale.max-factor"),
+                        config.getBytes("render.downscale.source-cache-size"), threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                        config.getInt("render.png-compression"));
+            }
+            renderFlights = new RenderFlights(this, config.getInt("render.tries"), config.getDouble("render.hedge-percentile"),
+                    config.getInt("render.hedge-min-samples"), config.getDuration("render.timeout", TimeUnit.MILLISECONDS), admission, downscaler);
+            negativeCache = new NegativeCache(config.getDuration("redis.negative-ttl", TimeUnit.MILLISECONDS));
+            nameResolver = new NameResolver(this, config.getDuration("lookup-batch-window", TimeUnit.MILLISECONDS), config.getDuration("redis.resolver-ttl", TimeUnit.MILLISECONDS),
+                    config.hasPath("lookup-threads") ? config.getInt("lookup-threads") : 4);
+            if (Visage.debug) Visage.log.finer("Render cache size: " + humanReadableByteCount(renderCache.getMaxBytes(), false));
+
             ResourceHandler resource = new ResourceHandler();
             resource.setResourceBase(config.getString("http.static"));
             resource.setDirectoriesListed(false);
@@ -145,87 +232,67 @@ public class VisageMaster extends Thread implements VisageRunner {
             String redisHost = config.getString("redis.host");
             int redisPort = config.getInt("redis.port");
             Visage.log.info("Connecting to Redis at " + redisHost + ":" + redisPort);
-            resolverNum = config.getInt("redis.resolver-db");
-            skinNum = config.getInt("redis.skin-db");
             JedisPoolConfig jpc = new JedisPoolConfig();
             jpc.setMaxIdle(config.getInt("redis.max-idle-connections"));
             jpc.setMaxTotal(config.getInt("redis.max-total-connections"));
             jpc.setMinIdle(config.getInt("redis.min-idle-connections"));
-            if (config.hasPath("redis.password")) {
-                password = config.getString("redis.password");
-            }
-            pool = new JedisPool(jpc, redisHost, redisPort);
+            String password = config.hasPath("redis.password") ? config.getString("redis.password") : null;
+            // connections authenticate and select their database once, when they are created
+            resolverPool = new JedisPool(jpc, redisHost, redisPort, Protocol.DEFAULT_TIMEOUT, password, config.getInt("redis.resolver-db"));
+            skinPool = new JedisPool(jpc, redisHost, redisPort, Protocol.DEFAULT_TIMEOUT, password, config.getInt("redis.skin-db"));
+            renderPool = new JedisPool(jpc, redisHost, redisPort, Protocol.DEFAULT_TIMEOUT, password, config.getInt("redis.render-db"));
 
 
-            Visage.log.info("Connecting to RabbitMQ at " + config.getString("rabbitmq.host") + ":" + config.getInt("rabbitmq.port"));
-            ConnectionFactory factory = new ConnectionFactory();
-            factory.setHost(config.getString("rabbitmq.host"));
-            factory.setPort(config.getInt("rabbitmq.port"));
-            factory.setRequestedHeartbeat(10);
-            if (config.hasPath("rabbitmq.user")) {
-                factory.setUsername(config.getString("rabbitmq.user"));
-                factory.setPassword(config.getString("rabbitmq.password"));
-            }
-            String queue = config.getString("rabbitmq.queue");
-
             Closer closer = Closer.create();
             steve = ByteStreams.toByteArray(closer.register(ClassLoader.getSystemResourceAsStream("steve.png")));
             alex = ByteStreams.toByteArray(closer.register(ClassLoader.getSystemResourceAsStream("alex.png")));
             closer.close();
 
-            conn = factory.newConnection();
-            channel = conn.createChannel();
-            if (Visage.debug) Visage.log.finer("Setting up queue '" + queue + "'");
-            channel.queueDeclare(queue, false, false, true, null);
-            channel.basicQos(1);
-
-            if (Visage.debug) Visage.log.finer("Setting up reply queue");
-            replyQueue = channel.queueDeclare().getQueue();
-            consumer = new QueueingConsumer(channel);
-            channel.basicConsume(replyQueue, consumer);
+            String transportType = config.getString("transport");
+            if ("local".equals(transportType)) {
+                Visage.log.info("Starting local slave");
+                VisageSlave local = new VisageSlave(config.getConfig("slave"), true);
+                local.start();
+                transport = new LocalRenderTransport(local, pending.getTimer());
+            } else if ("rabbitmq".equals(transportType)) {
+                transport = new RabbitRenderTransport(config, pending);
+            } else {
+                throw new IllegalArgumentException("Unknown transport '" + transportType + "' - must be rabbitmq or local");
+            }
 
-            if (config.getBoolean("slave.enable")) {
+            if (transport instanceof RabbitRenderTransport && config.getBoolean("slave.enable")) {
                 Visage.log.info("Starting fallback slave");
                 fallback = new VisageSlave(config.getConfig("slave").withValue("rabbitmq", config.getValue("rabbitmq")));
                 fallback.start();
             }
             Visage.log.info("Starting Jetty");
             server.start();
-            Visage.log.info("Listening for finished jobs");
-            try {
+            if ("eager".equals(atlasMode)) {
+                defaultRenderAtlas.fill(this);
+            }
+            synchronized (this) {
                 while (run) {
-                    Delivery delivery = consumer.nextDelivery();
-                    if (Visage.trace) Visage.log.finest("Got delivery");
                     try {
-                        String corrId = delivery.getProperties().getCorrelationId();
-                        if (queuedJobs.containsKey(corrId)) {
-                            if (Visage.trace) Visage.log.finest("Valid");
-                            responses.put(corrId, delivery.getBody());
-                            Runnable run = queuedJobs.get(corrId);
-                            queuedJobs.remove(corrId);
-                            if (Visage.trace) Visage.log.finest("Removed from queue");
-                            run.run();
-                            if (Visage.trace) Visage.log.finest("Ran runnable");
-                            channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-                            if (Visage.trace) Visage.log.finest("Ack'd");
-                        } else {
-                            Visage.log.warning("Unknown correlation ID?");
-                            channel.basicNack(delivery.getEnvelope().getDeliveryTag(), false, false);
-                        }
-                    } catch (Exception e) {
-                        Visage.log.log(Level.WARNING, "An unexpected error occured while attempting to process a response.", e);
+                        wait();
+                    } catch (InterruptedException e) {
+                        break;
                     }
                 }
-            } catch (InterruptedException e) {
-            } catch (Exception e) {
-                Visage.log.log(Level.SEVERE, "An unexpected error occured in the master run loop.", e);
-                System.exit(2);
             }
             try {
                 Visage.log.info("Shutting down master");
                 server.stop();
-                pool.destroy();
-                conn.close(5000);
+                pending.shutdown();
+                sharedRenderCache.shutdown();
+                nameResolver.shutdown();
+                resolverPool.destroy();
+                skinPool.destroy();
+                renderPool.destroy();
+                renderFlights.shutdown();
+                if (renderFlights.getDownscaler() != null) {
+                    renderFlights.getDownscaler().shutdown();
+                }
+                transport.shutdown();
             } catch (Exception e) {
                 Visage.log.log(Level.SEVERE, "A fatal error has occurred while shutting down the master.", e);
             }
@@ -235,85 +302,126 @@ public class VisageMaster extends Thread implements VisageRunner {
         }
     }
 
-    private String replyQueue;
-    private QueueingConsumer consumer;
-    private Map<String, Runnable> queuedJobs = Maps.newHashMap();
-    private Map<String, byte[]> responses = Maps.newHashMap();
+    private RenderTransport transport;
+    private final AtomicLong cancels = new AtomicLong();
+    private final PendingRenders pending = new PendingRenders();
+    private Cache<String, Boolean> sentSkins;
+    private final AtomicLong skinsInlined = new AtomicLong();
+    private final AtomicLong skinsReferenced = new AtomicLong();
+    private final AtomicLong skinMisses = new AtomicLong();
+    private RenderCache renderCache;
+    private SharedRenderCache sharedRenderCache;
+    private RenderFlights renderFlights;
+    private FaceRenderer faceRenderer;
+    private DefaultRenderAtlas defaultRenderAtlas;
+    private NameResolver nameResolver;
+    private NegativeCache negativeCache;
 
-    public RenderResponse renderRpc(RenderMode mode, int width, int height, int supersampling, GameProfile profile, byte[] skin, Map<String, String[]> switches) throws RenderFailedException, NoSlavesAvailableException {
-        if (mode == RenderMode.SKIN) return null;
+    /**
+     * @param inline whether to always include the skin in the request; if
+     *      false, skins that were sent recently are only referred to by ID
+     * @param token shared by every attempt at the same render, for {@link #cancelRender}
+     */
+    public ListenableFuture<RenderResponse> renderRpc(final RenderMode mode, final int width, final int height, final int supersampling, final GameProfile profile,
+                                                      final byte[] skin, final String skinId, boolean inline, final Map<String, String[]> switches, final String token) {
+        long deadline = System.currentTimeMillis() + config.getDuration("render.timeout", TimeUnit.MILLISECONDS);
+        return renderRpc(mode, width, height, supersampling, profile, skin, skinId, inline, switches, token, deadline);
+    }
+
+    /**
+     * @param deadline when to give up, in milliseconds since the epoch; a
+     *      resend for a slave that was missing the skin doesn't get more time
+     */
+    private ListenableFuture<RenderResponse> renderRpc(final RenderMode mode, final int width, final int height, final int supersampling, final GameProfile profile,
+                                                       final byte[] skin, final String skinId, final boolean inline, final Map<String, String[]> switches, final String token,
+                                                       final long deadline) {
+        if (mode == RenderMode.SKIN) return Futures.immediateFuture(null);
         try {
-            byte[] response = null;
-            String corrId = UUID.randomUUID().toString();
-            BasicProperties props = new BasicProperties.Builder().correlationId(corrId).replyTo(replyQueue).build();
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            DeflaterOutputStream defos = new DeflaterOutputStream(baos);
-            DataOutputStream dos = new DataOutputStream(defos);
-            dos.writeByte(mode.ordinal());
-            dos.writeShort(width);
-            dos.writeShort(height);
-            dos.writeByte(supersampling);
-            Profiles.writeGameProfile(dos, profile);
-            dos.writeShort(switches.size());
-            for (Entry<String, String[]> en : switches.entrySet()) {
-                dos.writeUTF(en.getKey());
-                dos.writeByte(en.getValue().length);
-                for (String s : en.getValue()) {
-                    dos.writeUTF(s);
-                }
+            long timeoutMillis = deadline - System.currentTimeMillis();
+            if (timeoutMillis <= 0) {
+                return Futures.immediateFailedFuture(new RenderFailedException("Request timed out"));
+            }
+            RenderRequest req = new RenderRequest();
+            req.mode = mode;
+            req.width = width;
+            req.height = height;
+            req.supersampling = supersampling;
+            req.profile = profile;
+            req.params = switches;
+            req.skinId = skinId;
+            req.skin = skin;
+            if (inline || sentSkins.getIfPresent(skinId) == null) {
+                skinsInlined.incrementAndGet();
+                req.skinLength = skin.length;
+                sentSkins.put(skinId, Boolean.TRUE);
+            } else {
+                skinsReferenced.incrementAndGet();
+                req.skinLength = 0;
             }
-            dos.writeInt(skin.length);
-            dos.write(skin);
-            dos.flush();
-            defos.finish();
-            channel.basicPublish("", config.getString("rabbitmq.queue"), props, baos.toByteArray());
+            final boolean sentSkin = req.skinLength != 0;
+            ListenableFuture<RenderReply> waiter = transport.send(req, token, timeoutMillis);
             if (Visage.debug)
                 Visage.log.finer("Requested a " + width + "x" + height + " " + mode.name().toLowerCase() + " render (" + supersampling + "x supersampling) for " + (profile == null ? "null" : profile.getName()));
-            final Object waiter = new Object();
-            queuedJobs.put(corrId, new Runnable() {
+            return Futures.transform(waiter, new AsyncFunction<RenderReply, RenderResponse>() {
                 @Override
-                public void run() {
-                    if (Visage.debug) Visage.log.finer("Got response");
-                    synchronized (waiter) {
-                        waiter.notify();
+                public ListenableFuture<RenderResponse> apply(RenderReply reply) throws Exception {
+                    RenderResponse resp = parseResponse(mode, reply);
+                    if (resp == null) {
+                        skinMisses.incrementAndGet();
+                        if (sentSkin) {
+                            // it was sent, so sending it again won't help
+                            throw new RenderFailedException("Slave asked for skin " + skinId + " despite being sent it");
+                        }
+                        if (Visage.debug) Visage.log.finer("Slave didn't have skin " + skinId + ", sending it again");
+                        return renderRpc(mode, width, height, supersampling, profile, skin, skinId, true, switches, token, deadline);
                     }
+                    return Futures.immediateFuture(resp);
                 }
             });
-            long start = System.currentTimeMillis();
-            long timeout = config.getDuration("render.timeout", TimeUnit.MILLISECONDS);
-            synchronized (waiter) {
-                while (queuedJobs.containsKey(corrId) && (System.currentTimeMillis() - start) < timeout) {
-                    if (Visage.trace) Visage.log.finest("Waiting...");
-                    waiter.wait(timeout);
-                }
-            }
-            if (queuedJobs.containsKey(corrId)) {
-                if (Visage.trace) Visage.log.finest("Queue still contains this request, assuming timeout");
-                queuedJobs.remove(corrId);
-                throw new RenderFailedException("Request timed out");
-            }
-            response = responses.get(corrId);
-            responses.remove(corrId);
-            if (response == null)
-                throw new RenderFailedException("Response was null");
-            ByteArrayInputStream bais = new ByteArrayInputStream(response);
-            String slave = new DataInputStream(bais).readUTF();
-            int type = bais.read();
-            byte[] payload = ByteStreams.toByteArray(bais);
-            if (type == 0) {
+        } catch (Exception e) {
+            return Futures.immediateFailedFuture(new RenderFailedException("Unexpected error", e));
+        }
+    }
+
+    /**
+     * Tells slaves to skip any jobs with the given token that they haven't
+     * started yet.
+     */
+    public void cancelRender(String token) {
+        try {
+            transport.cancel(token);
+            cancels.incrementAndGet();
+        } catch (Exception e) {
+            Visage.log.log(Level.WARNING, "Could not cancel render " + token, e);
+        }
+    }
+
+    public long getCancels() {
+        return cancels.get();
+    }
+
+    /**
+     * @return null if the slave needs the request to be sent again with the
+     *      skin included
+     */
+    private RenderResponse parseResponse(RenderMode mode, RenderReply reply) throws RenderFailedException {
+        try {
+            if (reply.type == RenderReply.TYPE_SUCCESS) {
                 if (Visage.trace) Visage.log.finest("Got type 0, success");
                 RenderResponse resp = new RenderResponse();
-                resp.slave = slave;
-                resp.png = payload;
+                resp.slave = reply.slave;
+                resp.png = reply.png;
+                resp.timings = reply.timings;
                 Visage.log.info("Receieved a " + mode.name().toLowerCase() + " render from " + resp.slave);
                 return resp;
-            } else if (type == 1) {
+            } else if (reply.type == RenderReply.TYPE_ERROR) {
                 if (Visage.trace) Visage.log.finest("Got type 1, failure");
-                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(payload));
-                Throwable t = (Throwable) ois.readObject();
-                throw new RenderFailedException("Slave reported error", t);
+                throw new RenderFailedException("Slave '" + reply.slave + "' reported " + reply.errorCode + ": " + reply.message, reply.cause);
+            } else if (reply.type == RenderReply.TYPE_SKIN_MISSING) {
+                if (Visage.trace) Visage.log.finest("Got type 2, skin missing");
+                return null;
             } else
-                throw new RenderFailedException("Malformed response from '" + slave + "' - unknown response id " + type);
+                throw new RenderFailedException("Malformed response from '" + reply.slave + "' - unknown response id " + reply.type);
         } catch (Exception e) {
             if (e instanceof RenderFailedException)
                 throw (RenderFailedException) e;
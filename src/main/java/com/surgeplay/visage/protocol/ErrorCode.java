@@ -0,0 +1,51 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.protocol;
+
+/**
+ * Reasons a slave can give for failing a render. New codes must only be
+ * added at the end, as they are sent by ordinal.
+ */
+public enum ErrorCode {
+	/** Anything that doesn't fit a more specific code. */
+	INTERNAL,
+	/** The request couldn't be decoded. */
+	MALFORMED_REQUEST,
+	/** The request used a protocol version the slave doesn't understand. */
+	UNSUPPORTED_VERSION,
+	/** The skin in the request couldn't be decoded as a PNG. */
+	BAD_SKIN,
+	/** The renderer failed, usually due to an OpenGL error. */
+	RENDER_FAILED,
+	/** The rendered image couldn't be encoded. */
+	ENCODE_FAILED;
+	
+	private static final ErrorCode[] VALUES = values();
+	
+	public static ErrorCode fromOrdinal(int ordinal) {
+		if (ordinal < 0 || ordinal >= VALUES.length) return INTERNAL;
+		return VALUES[ordinal];
+	}
+}
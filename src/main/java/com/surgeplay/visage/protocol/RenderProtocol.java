@@ -0,0 +1,379 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.zip.InflaterInputStream;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.surgeplay.visage.RenderMode;
+import com.surgeplay.visage.util.ExposedByteArrayOutputStream;
+import com.surgeplay.visage.util.Profiles;
+
+/**
+ * Encodes and decodes the messages sent between masters and slaves.
+ * <p>
+ * Every message starts with {@link #MAGIC} and a version byte. A request is
+ * then the mode, size, supersampling, profile, parameters, skin hash and the
+ * length-prefixed skin. A reply is the slave name, the type, the timings for
+ * each {@link Stage}, and then either the length-prefixed PNG or an error code
+ * and message. A {@link LoadReport} is its fields in order. Nothing is
+ * compressed, as the skins and renders already are.
+ * <p>
+ * Messages in the old deflated format, which never start with the magic
+ * byte, are still understood so masters and slaves can be upgraded one at a
+ * time. Slaves reply in whatever format the request used.
+ */
+public class RenderProtocol {
+	/** Can't be the start of a zlib stream or of the old reply's name length. */
+	public static final byte MAGIC = 'V';
+	public static final int VERSION = 1;
+	
+	/** The absolute time, in milliseconds since the epoch, after which nobody is waiting for a job. */
+	public static final String DEADLINE_HEADER = "x-visage-deadline";
+	/** Shared by every attempt at the same render, so they can be cancelled together. */
+	public static final String TOKEN_HEADER = "x-visage-token";
+	
+	private static final int INITIAL_BUFFER_SIZE = 64*1024;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 1024*1024;
+	private static final int MAX_MESSAGE_LENGTH = 1024;
+	private static final RenderMode[] MODES = RenderMode.values();
+	
+	private static final ThreadLocal<Buffer> buffers = new ThreadLocal<Buffer>() {
+		@Override
+		protected Buffer initialValue() {
+			return new Buffer();
+		}
+	};
+	
+	private static class Buffer {
+		public final ExposedByteArrayOutputStream bytes = new ExposedByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+		public final DataOutputStream data = new DataOutputStream(bytes);
+	}
+	
+	private static class Input extends ByteArrayInputStream {
+		public Input(byte[] buf) {
+			super(buf);
+		}
+		public int position() {
+			return pos;
+		}
+	}
+	
+	private static Buffer acquire() {
+		Buffer b = buffers.get();
+		b.bytes.reset();
+		return b;
+	}
+	
+	private static byte[] release(Buffer b) {
+		byte[] out = b.bytes.toByteArray();
+		if (b.bytes.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			// don't hold on to the memory from an unusually large message forever
+			buffers.remove();
+		}
+		return out;
+	}
+	
+	/**
+	 * @return the fanout exchange that tokens of cancelled renders are
+	 * 		published to for the given job queue
+	 */
+	public static String getCancelExchange(String queue) {
+		return queue+".cancel";
+	}
+	
+	/**
+	 * @return the fanout exchange slaves publish their {@link LoadReport}s to
+	 */
+	public static String getLoadExchange(String queue) {
+		return queue+".load";
+	}
+	
+	/**
+	 * @return the queue only the slave with the given id takes jobs from
+	 */
+	public static String getSlaveQueue(String queue, String slaveId) {
+		return queue+".slave."+slaveId;
+	}
+	
+	/**
+	 * @return the queue jobs of the given cost class are sent to
+	 */
+	public static String getCostClassQueue(String queue, String costClass) {
+		return queue+"-"+costClass;
+	}
+	
+	public static boolean isLegacy(byte[] body) {
+		return body == null || body.length == 0 || body[0] != MAGIC;
+	}
+	
+	public static byte[] encodeRequest(RenderRequest req) throws IOException {
+		Buffer b = acquire();
+		DataOutputStream data = b.data;
+		data.writeByte(MAGIC);
+		data.writeByte(VERSION);
+		data.writeByte(req.mode.ordinal());
+		data.writeShort(req.width);
+		data.writeShort(req.height);
+		data.writeByte(req.supersampling);
+		Profiles.writeGameProfile(data, req.profile);
+		writeParams(data, req.params);
+		data.writeUTF(req.skinId == null ? "" : req.skinId);
+		data.writeInt(req.skinLength);
+		data.write(req.skin, req.skinOffset, req.skinLength);
+		return release(b);
+	}
+	
+	/**
+	 * The returned request's skin refers to {@code body} rather than a copy.
+	 */
+	public static RenderRequest decodeRequest(byte[] body) throws IOException, RenderException {
+		if (isLegacy(body)) return decodeLegacyRequest(body);
+		Input in = new Input(body);
+		DataInputStream data = new DataInputStream(in);
+		data.readByte();
+		int version = data.readUnsignedByte();
+		if (version > VERSION) {
+			throw new RenderException(ErrorCode.UNSUPPORTED_VERSION, "Protocol version "+version+" is not supported, the latest supported version is "+VERSION);
+		}
+		RenderRequest req = new RenderRequest();
+		req.mode = readMode(data);
+		req.width = data.readUnsignedShort();
+		req.height = data.readUnsignedShort();
+		req.supersampling = data.readUnsignedByte();
+		req.profile = Profiles.readGameProfile(data);
+		req.params = readParams(data);
+		req.skinId = data.readUTF();
+		if (req.skinId.isEmpty()) req.skinId = null;
+		req.skinLength = data.readInt();
+		req.skinOffset = in.position();
+		if (req.skinLength < 0 || req.skinLength > body.length-req.skinOffset) {
+			throw new EOFException("Skin length "+req.skinLength+" overruns the message");
+		}
+		req.skin = body;
+		return req;
+	}
+	
+	private static RenderRequest decodeLegacyRequest(byte[] body) throws IOException, RenderException {
+		DataInputStream data = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(body)));
+		RenderRequest req = new RenderRequest();
+		req.legacy = true;
+		req.mode = readMode(data);
+		req.width = data.readUnsignedShort();
+		req.height = data.readUnsignedShort();
+		req.supersampling = data.readUnsignedByte();
+		req.profile = Profiles.readGameProfile(data);
+		req.params = readParams(data);
+		req.skin = new byte[data.readInt()];
+		req.skinLength = req.skin.length;
+		data.readFully(req.skin);
+		try {
+			req.skinId = data.readUTF();
+		} catch (EOFException e) {
+			// sent by a master that predates skin references
+		}
+		return req;
+	}
+	
+	public static byte[] encodeReply(RenderReply reply) throws IOException {
+		Buffer b = acquire();
+		DataOutputStream data = b.data;
+		if (reply.legacy) {
+			data.writeUTF(reply.slave);
+			data.writeByte(reply.type);
+			if (reply.type == RenderReply.TYPE_SUCCESS) {
+				data.write(reply.png, 0, reply.pngLength);
+			} else if (reply.type == RenderReply.TYPE_ERROR) {
+				ObjectOutputStream oos = new ObjectOutputStream(data);
+				// old masters can't deserialize exceptions that only exist in newer versions
+				boolean sendCause = reply.cause != null && !(reply.cause instanceof RenderException);
+				oos.writeObject(sendCause ? reply.cause : new Exception(reply.errorCode+": "+reply.message));
+				oos.flush();
+			}
+			return release(b);
+		}
+		data.writeByte(MAGIC);
+		data.writeByte(VERSION);
+		data.writeUTF(reply.slave);
+		data.writeByte(reply.type);
+		data.writeByte(reply.timings.length);
+		for (int t : reply.timings) {
+			data.writeInt(t);
+		}
+		if (reply.type == RenderReply.TYPE_SUCCESS) {
+			data.writeInt(reply.pngLength);
+			data.write(reply.png, 0, reply.pngLength);
+		} else if (reply.type == RenderReply.TYPE_ERROR) {
+			data.writeByte(reply.errorCode.ordinal());
+			String msg = reply.message == null ? "" : reply.message;
+			data.writeUTF(msg.length() > MAX_MESSAGE_LENGTH ? msg.substring(0, MAX_MESSAGE_LENGTH) : msg);
+		}
+		return release(b);
+	}
+	
+	public static RenderReply decodeReply(byte[] body) throws IOException {
+		if (isLegacy(body)) return decodeLegacyReply(body);
+		Input in = new Input(body);
+		DataInputStream data = new DataInputStream(in);
+		data.readByte();
+		int version = data.readUnsignedByte();
+		if (version > VERSION) {
+			throw new IOException("Reply uses protocol version "+version+", the latest supported version is "+VERSION);
+		}
+		RenderReply reply = new RenderReply();
+		reply.slave = data.readUTF();
+		reply.type = data.readUnsignedByte();
+		int stages = data.readUnsignedByte();
+		for (int i = 0; i < stages; i++) {
+			int t = data.readInt();
+			if (i < reply.timings.length) {
+				reply.timings[i] = t;
+			}
+		}
+		if (reply.type == RenderReply.TYPE_SUCCESS) {
+			int len = data.readInt();
+			int off = in.position();
+			if (len < 0 || len > body.length-off) {
+				throw new EOFException("PNG length "+len+" overruns the message");
+			}
+			reply.png = Arrays.copyOfRange(body, off, off+len);
+			reply.pngLength = len;
+		} else if (reply.type == RenderReply.TYPE_ERROR) {
+			reply.errorCode = ErrorCode.fromOrdinal(data.readUnsignedByte());
+			reply.message = data.readUTF();
+		}
+		return reply;
+	}
+	
+	private static RenderReply decodeLegacyReply(byte[] body) throws IOException {
+		ByteArrayInputStream bais = new ByteArrayInputStream(body);
+		RenderReply reply = new RenderReply();
+		reply.legacy = true;
+		reply.slave = new DataInputStream(bais).readUTF();
+		reply.type = bais.read();
+		if (reply.type == RenderReply.TYPE_SUCCESS) {
+			reply.png = ByteStreams.toByteArray(bais);
+			reply.pngLength = reply.png.length;
+		} else if (reply.type == RenderReply.TYPE_ERROR) {
+			reply.errorCode = ErrorCode.INTERNAL;
+			try {
+				reply.cause = (Throwable) new ObjectInputStream(bais).readObject();
+				reply.message = reply.cause.toString();
+			} catch (ClassNotFoundException e) {
+				reply.message = "Unknown exception class "+e.getMessage();
+			}
+		}
+		return reply;
+	}
+	
+	public static byte[] encodeLoad(LoadReport load) throws IOException {
+		Buffer b = acquire();
+		DataOutputStream data = b.data;
+		data.writeByte(MAGIC);
+		data.writeByte(VERSION);
+		data.writeUTF(load.id);
+		data.writeUTF(load.name);
+		data.writeShort(load.renderers);
+		data.writeShort(load.busy);
+		data.writeInt(load.waiting);
+		data.writeInt(load.latency);
+		data.writeShort(load.queues.size());
+		for (String q : load.queues) {
+			data.writeUTF(q);
+		}
+		return release(b);
+	}
+	
+	public static LoadReport decodeLoad(byte[] body) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(body));
+		if (data.readByte() != MAGIC) {
+			throw new IOException("Not a load report");
+		}
+		int version = data.readUnsignedByte();
+		if (version > VERSION) {
+			throw new IOException("Load report uses protocol version "+version+", the latest supported version is "+VERSION);
+		}
+		LoadReport load = new LoadReport();
+		load.id = data.readUTF();
+		load.name = data.readUTF();
+		load.renderers = data.readUnsignedShort();
+		load.busy = data.readUnsignedShort();
+		load.waiting = data.readInt();
+		load.latency = data.readInt();
+		int len = data.readUnsignedShort();
+		load.queues = Lists.newArrayListWithCapacity(len);
+		for (int i = 0; i < len; i++) {
+			load.queues.add(data.readUTF());
+		}
+		return load;
+	}
+	
+	private static RenderMode readMode(DataInputStream data) throws IOException, RenderException {
+		int ordinal = data.readUnsignedByte();
+		if (ordinal >= MODES.length) {
+			throw new RenderException(ErrorCode.MALFORMED_REQUEST, "Unknown render mode "+ordinal);
+		}
+		return MODES[ordinal];
+	}
+	
+	private static void writeParams(DataOutputStream data, Map<String, String[]> params) throws IOException {
+		data.writeShort(params.size());
+		for (Entry<String, String[]> en : params.entrySet()) {
+			data.writeUTF(en.getKey());
+			data.writeByte(en.getValue().length);
+			for (String s : en.getValue()) {
+				data.writeUTF(s);
+			}
+		}
+	}
+	
+	private static Map<String, String[]> readParams(DataInputStream data) throws IOException {
+		int len = data.readUnsignedShort();
+		Map<String, String[]> params = Maps.newHashMapWithExpectedSize(len);
+		for (int i = 0; i < len; i++) {
+			String key = data.readUTF();
+			String[] val = new String[data.readUnsignedByte()];
+			for (int v = 0; v < val.length; v++) {
+				val[v] = data.readUTF();
+			}
+			params.put(key, val);
+		}
+		return params;
+	}
+	
+	private RenderProtocol() {}
+}
@@ -0,0 +1,55 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.protocol;
+
+public class RenderReply {
+	public static final int TYPE_SUCCESS = 0;
+	public static final int TYPE_ERROR = 1;
+	public static final int TYPE_SKIN_MISSING = 2;
+	
+	public String slave;
+	public int type;
+	/** Whether this reply uses the old format. */
+	public boolean legacy;
+	/** Microseconds spent in each {@link Stage}, indexed by ordinal. */
+	public int[] timings = new int[Stage.COUNT];
+	
+	/** The rendered PNG is the first {@code pngLength} bytes of this array. */
+	public byte[] png;
+	public int pngLength;
+	
+	public ErrorCode errorCode;
+	public String message;
+	/** Only present for errors in the old format, which sends exceptions whole. */
+	public Throwable cause;
+	
+	public RenderReply() {}
+	
+	public RenderReply(String slave, int type, boolean legacy) {
+		this.slave = slave;
+		this.type = type;
+		this.legacy = legacy;
+	}
+}
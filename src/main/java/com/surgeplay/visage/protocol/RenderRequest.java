@@ -0,0 +1,51 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.protocol;
+
+import java.util.Map;
+
+import org.spacehq.mc.auth.data.GameProfile;
+
+import com.surgeplay.visage.RenderMode;
+
+public class RenderRequest {
+	public RenderMode mode;
+	public int width;
+	public int height;
+	public int supersampling;
+	public GameProfile profile;
+	public Map<String, String[]> params;
+	/** The hash of the skin, or null if the sender didn't provide one. */
+	public String skinId;
+	/**
+	 * The skin PNG is {@code skinLength} bytes of this array starting at
+	 * {@code skinOffset}. A length of 0 means the skin was sent by reference.
+	 */
+	public byte[] skin;
+	public int skinOffset;
+	public int skinLength;
+	/** Whether this request was sent by a master using the old format. */
+	public boolean legacy;
+}
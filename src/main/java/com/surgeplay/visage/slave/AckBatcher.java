@@ -0,0 +1,170 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.slave;
+
+import java.io.IOException;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.rabbitmq.client.Channel;
+import com.surgeplay.visage.Visage;
+
+/**
+ * Acknowledges finished jobs in batches. Jobs finish out of order across the
+ * slave's threads, so only the run of finished delivery tags after the last
+ * acknowledged one is acknowledged with {@code multiple=true}; a multiple ack
+ * past a job that is still rendering would lose it if the slave died.
+ * <p>
+ * Every queue the slave takes jobs from shares one channel and so one tag
+ * sequence, and a long render would otherwise hold back the acks of every
+ * job delivered after it, filling up the prefetch of the other queues. Jobs
+ * finished behind such a gap are acknowledged one at a time instead.
+ */
+public class AckBatcher {
+	private final long intervalMillis;
+	private final int maxPending;
+	private final ScheduledExecutorService flusher;
+	private final TreeSet<Long> finished = new TreeSet<>();
+	/** Tags after the last acknowledged one that were acknowledged on their own. */
+	private final TreeSet<Long> ackedAlone = new TreeSet<>();
+	private Channel channel;
+	private long acked = 0;
+	private long acks = 0;
+	private long ackedJobs = 0;
+	
+	/**
+	 * @param intervalMillis how often to send acks, or 0 to ack every job immediately
+	 * @param maxPending the amount of finished jobs to allow before acking
+	 * 		early, so the prefetch limit doesn't stall the slave
+	 */
+	public AckBatcher(long intervalMillis, int maxPending) {
+		this.intervalMillis = intervalMillis;
+		this.maxPending = Math.max(1, maxPending);
+		if (intervalMillis > 0) {
+			flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Ack thread").setDaemon(true).build());
+			flusher.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						flush();
+					} catch (Exception e) {
+						Visage.log.log(Level.WARNING, "Could not acknowledge finished jobs", e);
+					}
+				}
+			}, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+		} else {
+			flusher = null;
+		}
+	}
+	
+	/**
+	 * Starts tracking a new channel. Delivery tags restart with every channel.
+	 */
+	public synchronized void reset(Channel channel) {
+		this.channel = channel;
+		acked = 0;
+		finished.clear();
+		ackedAlone.clear();
+	}
+	
+	/**
+	 * @param channel the channel the job was delivered on; jobs from a
+	 * 		channel that has since been replaced are not acknowledged, as their
+	 * 		tags mean nothing on the current one and the broker has already
+	 * 		requeued them
+	 */
+	public synchronized void finished(Channel channel, long deliveryTag) throws IOException {
+		if (channel != this.channel) {
+			if (Visage.debug) Visage.log.finer("Not acknowledging job "+deliveryTag+" from a closed channel");
+			return;
+		}
+		if (intervalMillis <= 0) {
+			channel.basicAck(deliveryTag, false);
+			acks++;
+			ackedJobs++;
+			return;
+		}
+		if (deliveryTag <= acked) return;
+		finished.add(deliveryTag);
+		if (finished.size() >= maxPending) {
+			flush();
+		}
+	}
+	
+	public synchronized void flush() throws IOException {
+		long upTo = acked;
+		long ackTo = acked;
+		int jobs = 0;
+		while (true) {
+			long next = upTo+1;
+			if (finished.remove(next)) {
+				ackTo = next;
+				jobs++;
+			} else if (!ackedAlone.remove(next)) {
+				break;
+			}
+			upTo = next;
+		}
+		if (ackTo > acked) {
+			// tags in the run that were already acknowledged alone are skipped by the broker
+			channel.basicAck(ackTo, true);
+			if (Visage.trace) Visage.log.finest("Ack'd "+jobs+" jobs up to "+ackTo);
+			acks++;
+			ackedJobs += jobs;
+		}
+		acked = upTo;
+		// whatever is left is stuck behind a job that is still rendering
+		while (!finished.isEmpty()) {
+			long tag = finished.pollFirst();
+			channel.basicAck(tag, false);
+			ackedAlone.add(tag);
+			acks++;
+			ackedJobs++;
+		}
+	}
+	
+	public synchronized long getAcks() {
+		return acks;
+	}
+	
+	public synchronized long getAckedJobs() {
+		return ackedJobs;
+	}
+	
+	public void shutdown() {
+		if (flusher != null) {
+			flusher.shutdown();
+		}
+		try {
+			flush();
+		} catch (Exception e) {
+			Visage.log.log(Level.WARNING, "Could not acknowledge finished jobs", e);
+		}
+	}
+}
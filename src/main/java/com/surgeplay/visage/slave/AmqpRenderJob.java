@@ -0,0 +1,103 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.slave;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.logging.Level;
+
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.QueueingConsumer.Delivery;
+import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.protocol.RenderException;
+import com.surgeplay.visage.protocol.RenderProtocol;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+
+/**
+ * A job that arrived from RabbitMQ.
+ */
+public class AmqpRenderJob extends RenderJob {
+	private final VisageSlave slave;
+	private final Channel channel;
+	private final Delivery delivery;
+	
+	/**
+	 * @param channel the channel the job was delivered on
+	 */
+	public AmqpRenderJob(VisageSlave slave, Channel channel, Delivery delivery) {
+		this.slave = slave;
+		this.channel = channel;
+		this.delivery = delivery;
+	}
+
+	@Override
+	public long getDeadline() {
+		Object deadline = getHeader(RenderProtocol.DEADLINE_HEADER);
+		return deadline instanceof Number ? ((Number)deadline).longValue() : 0;
+	}
+
+	@Override
+	public String getToken() {
+		Object token = getHeader(RenderProtocol.TOKEN_HEADER);
+		return token == null ? null : token.toString();
+	}
+	
+	private Object getHeader(String name) {
+		Map<String, Object> headers = delivery.getProperties().getHeaders();
+		return headers == null ? null : headers.get(name);
+	}
+
+	@Override
+	public boolean isLegacy() {
+		return RenderProtocol.isLegacy(delivery.getBody());
+	}
+
+	@Override
+	public RenderRequest decode() throws IOException, RenderException {
+		return RenderProtocol.decodeRequest(delivery.getBody());
+	}
+
+	@Override
+	public void reply(RenderReply reply) throws IOException {
+		BasicProperties props = delivery.getProperties();
+		BasicProperties replyProps = new BasicProperties.Builder().correlationId(props.getCorrelationId()).build();
+		if (Visage.trace) Visage.log.finest("Building response of type "+reply.type);
+		byte[] resp = RenderProtocol.encodeReply(reply);
+		if (Visage.trace) Visage.log.finest("Built - "+resp.length+" bytes long");
+		slave.publishers.publish("", props.getReplyTo(), replyProps, resp);
+		if (Visage.trace) Visage.log.finest("Published response");
+	}
+
+	@Override
+	public void finished() {
+		try {
+			slave.acks.finished(channel, delivery.getEnvelope().getDeliveryTag());
+		} catch (IOException e) {
+			Visage.log.log(Level.WARNING, "Could not acknowledge job", e);
+		}
+	}
+}
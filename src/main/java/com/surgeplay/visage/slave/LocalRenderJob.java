@@ -0,0 +1,90 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.slave;
+
+import java.util.Arrays;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+
+/**
+ * A job handed over directly by a master in the same process. Nothing is
+ * serialized; only the finished PNG is copied out of the encode thread's
+ * buffer.
+ */
+public class LocalRenderJob extends RenderJob {
+	private final RenderRequest request;
+	private final String token;
+	private final long deadline;
+	private final SettableFuture<RenderReply> reply = SettableFuture.create();
+	
+	public LocalRenderJob(RenderRequest request, String token, long deadline) {
+		this.request = request;
+		this.token = token;
+		this.deadline = deadline;
+	}
+	
+	public ListenableFuture<RenderReply> getReply() {
+		return reply;
+	}
+
+	@Override
+	public long getDeadline() {
+		return deadline;
+	}
+
+	@Override
+	public String getToken() {
+		return token;
+	}
+
+	@Override
+	public boolean isLegacy() {
+		return false;
+	}
+
+	@Override
+	public RenderRequest decode() {
+		return request;
+	}
+
+	@Override
+	public void reply(RenderReply r) {
+		if (r.png != null) {
+			r.png = Arrays.copyOf(r.png, r.pngLength);
+		}
+		reply.set(r);
+	}
+
+	@Override
+	public void finished() {
+		if (!reply.isDone()) {
+			// skipped because it expired or was cancelled
+			reply.cancel(false);
+		}
+	}
+}
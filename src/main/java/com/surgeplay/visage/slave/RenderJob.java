@@ -0,0 +1,65 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.slave;
+
+import java.io.IOException;
+
+import com.surgeplay.visage.protocol.RenderException;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+
+/**
+ * A render request handed to a {@link RenderPipeline}, along with the means to
+ * reply to it, however it arrived.
+ */
+public abstract class RenderJob {
+	/**
+	 * @return the time in milliseconds since the epoch after which nobody is
+	 * 		waiting for this job, or 0 if there isn't one
+	 */
+	public abstract long getDeadline();
+	
+	/**
+	 * @return the token shared by every attempt at this render, or null
+	 */
+	public abstract String getToken();
+	
+	/**
+	 * @return whether replies to this job need to be in the old format
+	 */
+	public abstract boolean isLegacy();
+	
+	public abstract RenderRequest decode() throws IOException, RenderException;
+	
+	/**
+	 * The reply's PNG buffer is reused after this returns.
+	 */
+	public abstract void reply(RenderReply reply) throws IOException;
+	
+	/**
+	 * Called once the job has been dealt with, whether or not it was replied to.
+	 */
+	public abstract void finished();
+}
@@ -0,0 +1,404 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.slave;
+
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sixlegs.png.PngImage;
+import com.surgeplay.visage.RenderMode;
+import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.protocol.ErrorCode;
+import com.surgeplay.visage.protocol.RenderException;
+import com.surgeplay.visage.protocol.RenderReply;
+import com.surgeplay.visage.protocol.RenderRequest;
+import com.surgeplay.visage.protocol.Stage;
+import com.surgeplay.visage.util.ExposedByteArrayOutputStream;
+import com.surgeplay.visage.util.Images;
+import com.surgeplay.visage.util.PngEncoder;
+
+/**
+ * Runs the parts of a render that don't need OpenGL on pools of their own, so
+ * render threads only upload skins, draw, and read back what they drew.
+ * <p>
+ * Decode threads decode requests and skins and hand them to the least busy
+ * render thread. Encode threads shrink supersampled renders, compress them,
+ * and send the reply. Every hand-off queue is bounded; when one fills up, the
+ * stage feeding it waits instead of piling up more work.
+ */
+public class RenderPipeline {
+	private static final int INITIAL_PNG_SIZE = 64*1024;
+	private static final int MAX_RETAINED_PNG_SIZE = 4*1024*1024;
+	private final VisageSlave parent;
+	private final ThreadPoolExecutor decoders;
+	private final ThreadPoolExecutor encoders;
+	private final ThreadLocal<PngEncoder> encoder;
+	private final ThreadLocal<ExposedByteArrayOutputStream> png = new ThreadLocal<ExposedByteArrayOutputStream>() {
+		@Override
+		protected ExposedByteArrayOutputStream initialValue() {
+			return new ExposedByteArrayOutputStream(INITIAL_PNG_SIZE);
+		}
+	};
+	
+	/**
+	 * @param decodeThreads how many jobs to decode at once
+	 * @param decodeQueueSize how many jobs may wait to be decoded
+	 * @param encodeThreads how many renders to compress at once
+	 * @param encodeQueueSize how many renders may wait to be compressed
+	 */
+	public RenderPipeline(final VisageSlave parent, int decodeThreads, int decodeQueueSize, int encodeThreads, int encodeQueueSize) {
+		this.parent = parent;
+		decoders = newStage("Decode thread #%d", decodeThreads, decodeQueueSize);
+		encoders = newStage("Encode thread #%d", encodeThreads, encodeQueueSize);
+		encoder = new ThreadLocal<PngEncoder>() {
+			@Override
+			protected PngEncoder initialValue() {
+				return new PngEncoder(parent.pngCompression, parent.pngPool);
+			}
+		};
+	}
+	
+	private static ThreadPoolExecutor newStage(String nameFormat, int threads, int queueSize) {
+		return new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueSize),
+				new ThreadFactoryBuilder().setNameFormat(nameFormat).setDaemon(true).build(),
+				new RejectedExecutionHandler() {
+					@Override
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if (executor.isShutdown()) {
+							throw new RejectedExecutionException("Render pipeline is shut down");
+						}
+						// wait for room rather than dropping the job
+						try {
+							executor.getQueue().put(r);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new RejectedExecutionException(e);
+						}
+					}
+				});
+	}
+	
+	/**
+	 * Starts a job on its way through the pipeline, waiting if the decode
+	 * threads are backed up.
+	 */
+	public void submit(final RenderJob job) {
+		decoders.execute(new Runnable() {
+			@Override
+			public void run() {
+				decode(new Render(job));
+			}
+		});
+	}
+	
+	/**
+	 * Passes a job that has been rendered on to the encode threads, waiting
+	 * if they are backed up.
+	 */
+	void rendered(final Render r) {
+		encoders.execute(new Runnable() {
+			@Override
+			public void run() {
+				encode(r);
+			}
+		});
+	}
+	
+	private void decode(Render r) {
+		boolean passedOn = false;
+		try {
+			if (isStale(r.job)) return;
+			RenderRequest req;
+			try {
+				req = r.job.decode();
+			} catch (IOException e) {
+				throw new RenderException(ErrorCode.MALFORMED_REQUEST, "Could not decode request", e);
+			}
+			r.req = req;
+			BufferedImage skin;
+			if (req.skinLength == 0) {
+				skin = req.skinId == null ? null : parent.skins.getIfPresent(req.skinId);
+				if (skin == null) {
+					if (Visage.debug) Visage.log.finer("Don't have skin "+req.skinId+", asking for it");
+					r.job.reply(new RenderReply(parent.name, RenderReply.TYPE_SKIN_MISSING, req.legacy));
+					return;
+				}
+			} else {
+				try {
+					skin = normalize(Images.toARGB(new PngImage().read(new ByteArrayInputStream(req.skin, req.skinOffset, req.skinLength), false)));
+				} catch (IOException e) {
+					throw new RenderException(ErrorCode.BAD_SKIN, "Could not decode skin", e);
+				}
+				if (req.skinId != null) {
+					parent.skins.put(req.skinId, skin);
+				}
+			}
+			r.skin = skin;
+			r.reply = new RenderReply(parent.name, RenderReply.TYPE_SUCCESS, req.legacy);
+			r.reply.timings[Stage.DECODE.ordinal()] = micros(System.nanoTime()-r.start);
+			Visage.log.info("Received a job to render a "+req.width+"x"+req.height+" "+req.mode.name().toLowerCase()+" ("+req.supersampling+"x supersampling) for "+(req.profile == null ? "null" : req.profile.getName()));
+			switch (req.mode) {
+				case FACE:
+				case SKIN:
+					// flat images, nothing for a render thread to do
+					long start = System.nanoTime();
+					try {
+						drawFlat(r);
+					} catch (Exception e) {
+						throw new RenderException(ErrorCode.RENDER_FAILED, "Could not render", e);
+					}
+					r.reply.timings[Stage.RENDER.ordinal()] = micros(System.nanoTime()-start);
+					rendered(r);
+					break;
+				default:
+					parent.dispatch(r);
+					break;
+			}
+			passedOn = true;
+		} catch (Exception e) {
+			fail(r, e);
+		} finally {
+			if (!passedOn) {
+				done(r);
+			}
+		}
+	}
+	
+	private void drawFlat(Render r) throws InterruptedException {
+		RenderRequest req = r.req;
+		BufferedImage out;
+		if (req.mode == RenderMode.FACE) {
+			int width = req.width/req.supersampling;
+			int height = req.height/req.supersampling;
+			out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+			int border = width/24;
+			Image face = r.skin.getSubimage(8, 8, 8, 8).getScaledInstance(width-(border*2), height-(border*2), Image.SCALE_FAST);
+			Image helm = r.skin.getSubimage(40, 8, 8, 8).getScaledInstance(width, height, Image.SCALE_FAST);
+			Graphics2D g2d = out.createGraphics();
+			g2d.drawImage(face, border, border, null);
+			g2d.drawImage(helm, 0, 0, null);
+			g2d.dispose();
+		} else {
+			out = r.skin;
+		}
+		r.pixels = Images.toPixels(out);
+		r.width = out.getWidth();
+		r.height = out.getHeight();
+	}
+	
+	private void encode(Render r) {
+		try {
+			long start = System.nanoTime();
+			int[] pixels = r.pixels;
+			int width = r.width;
+			int height = r.height;
+			int supersampling = r.req.supersampling;
+			if (r.supersampled && supersampling > 1) {
+				pixels = Images.downscale(pixels, width, height, width/supersampling, height/supersampling);
+				width /= supersampling;
+				height /= supersampling;
+			}
+			ExposedByteArrayOutputStream out = png.get();
+			out.reset();
+			try {
+				encoder.get().encode(pixels, width, height, out);
+			} catch (IOException e) {
+				throw new RenderException(ErrorCode.ENCODE_FAILED, "Could not encode render", e);
+			}
+			int[] timings = r.reply.timings;
+			timings[Stage.ENCODE.ordinal()] = micros(System.nanoTime()-start);
+			if (Visage.trace) Visage.log.finest("Wrote png");
+			r.reply.png = out.getBuffer();
+			r.reply.pngLength = out.size();
+			r.job.reply(r.reply);
+			// time spent waiting between stages isn't counted, as masters
+			// already account for the jobs a slave has queued
+			parent.recordLatency(timings[Stage.DECODE.ordinal()]+timings[Stage.RENDER.ordinal()]+timings[Stage.ENCODE.ordinal()]);
+			if (out.capacity() > MAX_RETAINED_PNG_SIZE) {
+				png.remove();
+			}
+		} catch (Exception e) {
+			fail(r, e);
+		} finally {
+			done(r);
+		}
+	}
+	
+	/**
+	 * @return true if nobody is waiting for this job anymore, so it shouldn't
+	 * 		be replied to
+	 */
+	boolean isStale(RenderJob job) {
+		long deadline = job.getDeadline();
+		if (deadline != 0 && System.currentTimeMillis() > deadline) {
+			if (Visage.debug) Visage.log.finer("Skipping job that expired "+(System.currentTimeMillis()-deadline)+"ms ago");
+			parent.expiredJobs.incrementAndGet();
+			return true;
+		}
+		String token = job.getToken();
+		if (token != null && parent.cancelled.getIfPresent(token) != null) {
+			if (Visage.debug) Visage.log.finer("Skipping cancelled job "+token);
+			parent.cancelledJobs.incrementAndGet();
+			return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Sends an error reply for a job that couldn't be finished.
+	 */
+	void fail(Render r, Exception e) {
+		Visage.log.log(Level.SEVERE, "An unexpected error occurred while rendering", e);
+		RenderReply reply = new RenderReply(parent.name, RenderReply.TYPE_ERROR, r.job.isLegacy());
+		reply.errorCode = e instanceof RenderException ? ((RenderException)e).getCode() : ErrorCode.INTERNAL;
+		reply.message = e.getCause() != null ? e.getMessage()+": "+e.getCause() : String.valueOf(e);
+		reply.cause = e;
+		try {
+			r.job.reply(reply);
+		} catch (Exception ex) {
+			Visage.log.log(Level.WARNING, "Could not send error reply", ex);
+		}
+	}
+	
+	/**
+	 * Called exactly once for every job, by whichever stage it stops at.
+	 */
+	void done(Render r) {
+		r.job.finished();
+		parent.jobFinished();
+	}
+	
+	/**
+	 * @return roughly how many jobs are waiting for or being decoded
+	 */
+	public int getDecoding() {
+		return decoders.getQueue().size()+decoders.getActiveCount();
+	}
+	
+	public void shutdown() {
+		decoders.shutdownNow();
+		encoders.shutdownNow();
+	}
+	
+	private static int micros(long nanos) {
+		return (int)Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(nanos));
+	}
+	
+	/**
+	 * Converts legacy skins to the 64x64 layout and strips solid colored helms.
+	 * Skins are cached after this, so the result must not be modified.
+	 */
+	private BufferedImage normalize(BufferedImage skin) {
+		if (skin.getHeight() == 32) {
+			if (Visage.debug) Visage.log.finer("Skin is legacy; painting onto new-style canvas");
+			BufferedImage canvas = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
+			Graphics2D g = canvas.createGraphics();
+			g.drawImage(skin, 0, 0, null);
+			g.drawImage(flipLimb(skin.getSubimage(0, 16, 16, 16)), 16, 48, null);
+			g.drawImage(flipLimb(skin.getSubimage(40, 16, 16, 16)), 32, 48, null);
+			g.dispose();
+			skin = canvas;
+		}
+		int color = skin.getRGB(32, 8);
+		boolean equal = true;
+		for (int x = 32; x < 64; x++) {
+			for (int y = 0; y < 16; y++) {
+				if (x < 40 && y < 8) continue;
+				if (x > 54 && y < 8) continue;
+				if (skin.getRGB(x, y) != color) {
+					equal = false;
+					break;
+				}
+			}
+		}
+		if (equal) {
+			if (Visage.debug) Visage.log.finer("Skin has solid colored helm, stripping");
+			skin.setRGB(32, 0, 32, 16, new int[32*64], 0, 32);
+		}
+		return skin;
+	}
+
+	private BufferedImage flipLimb(BufferedImage in) {
+		BufferedImage out = new BufferedImage(in.getWidth(), in.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		
+		BufferedImage front = flipHorziontally(in.getSubimage(4, 4, 4, 12));
+		BufferedImage back = flipHorziontally(in.getSubimage(12, 4, 4, 12));
+		
+		BufferedImage top = flipHorziontally(in.getSubimage(4, 0, 4, 4));
+		BufferedImage bottom = flipHorziontally(in.getSubimage(8, 0, 4, 4));
+		
+		BufferedImage left = in.getSubimage(8, 4, 4, 12);
+		BufferedImage right = in.getSubimage(0, 4, 4, 12);
+		
+		Graphics2D g = out.createGraphics();
+		g.drawImage(front, 4, 4, null);
+		g.drawImage(back, 12, 4, null);
+		g.drawImage(top, 4, 0, null);
+		g.drawImage(bottom, 8, 0, null);
+		g.drawImage(left, 0, 4, null); // left goes to right
+		g.drawImage(right, 8, 4, null); // right goes to left
+		g.dispose();
+		return out;
+	}
+	
+	private BufferedImage flipHorziontally(BufferedImage in) {
+		BufferedImage out = new BufferedImage(in.getWidth(), in.getHeight(), BufferedImage.TYPE_INT_ARGB);
+		Graphics2D g = out.createGraphics();
+		g.drawImage(in, 0, 0, in.getWidth(), in.getHeight(), in.getWidth(), 0, 0, in.getHeight(), null);
+		g.dispose();
+		return out;
+	}
+	
+	/**
+	 * A job on its way through the pipeline, and what each stage has made of
+	 * it so far.
+	 */
+	static class Render {
+		final RenderJob job;
+		final long start = System.nanoTime();
+		RenderRequest req;
+		BufferedImage skin;
+		RenderReply reply;
+		int[] pixels;
+		int width, height;
+		/** Whether the pixels still need shrinking by the supersampling factor. */
+		boolean supersampled;
+		Render(RenderJob job) {
+			this.job = job;
+		}
+	}
+
+}
@@ -24,46 +24,38 @@
  */
 package com.surgeplay.visage.slave;
 
-import java.awt.Graphics2D;
-import java.awt.Image;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.File;
-import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.util.ArrayDeque;
-import java.util.Deque;
-import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
-import java.util.zip.InflaterInputStream;
 
-import javax.imageio.ImageIO;
-
-import org.spacehq.mc.auth.data.GameProfile;
-
-import com.google.common.collect.Maps;
-import com.google.common.io.Files;
-import com.rabbitmq.client.AMQP.BasicProperties;
-import com.rabbitmq.client.QueueingConsumer.Delivery;
-import com.sixlegs.png.PngImage;
 import com.surgeplay.visage.RenderMode;
 import com.surgeplay.visage.Visage;
+import com.surgeplay.visage.protocol.ErrorCode;
+import com.surgeplay.visage.protocol.RenderException;
+import com.surgeplay.visage.protocol.RenderRequest;
+import com.surgeplay.visage.protocol.Stage;
+import com.surgeplay.visage.slave.RenderPipeline.Render;
 import com.surgeplay.visage.slave.render.Renderer;
-import com.surgeplay.visage.util.Images;
-import com.surgeplay.visage.util.Profiles;
 
+/**
+ * Owns a set of OpenGL contexts, and does the only part of a render that
+ * needs one: uploading the skin, drawing, and reading back the result. The
+ * rest happens on the {@link RenderPipeline}'s threads.
+ */
 public class RenderThread extends Thread {
 	private static int nextId = 1;
 	private VisageSlave parent;
 	private Renderer[] renderers;
 	private boolean run = true;
-	private Deque<Delivery> toProcess = new ArrayDeque<>();
-	public RenderThread(VisageSlave parent) {
+	private volatile boolean working = false;
+	private final AtomicInteger load = new AtomicInteger();
+	private final BlockingDeque<Render> toProcess;
+	public RenderThread(VisageSlave parent, int queueSize) {
 		super("Render thread #"+(nextId++));
 		this.parent = parent;
+		this.toProcess = new LinkedBlockingDeque<>(queueSize);
 		RenderMode[] modes = RenderMode.values();
 		renderers = new Renderer[modes.length];
 		for (int i = 0; i < modes.length; i++) {
@@ -77,24 +69,28 @@ public class RenderThread extends Thread {
 			Visage.log.info("Waiting for jobs");
 			try {
 				while (run) {
-					if (!toProcess.isEmpty()) {
-						Delivery delivery = toProcess.pop();
-						try {
-							processDelivery(delivery);
-						} catch (Exception e) {
-							Visage.log.log(Level.SEVERE, "An unexpected error occurred while rendering", e);
-							BasicProperties props = delivery.getProperties();
-							BasicProperties replyProps = new BasicProperties.Builder().correlationId(props.getCorrelationId()).build();
-							ByteArrayOutputStream ex = new ByteArrayOutputStream();
-							ObjectOutputStream oos = new ObjectOutputStream(ex);
-							oos.writeObject(e);
-							oos.flush();
-							parent.channel.basicPublish("", props.getReplyTo(), replyProps, buildResponse(1, ex.toByteArray()));
-							parent.channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+					Render r;
+					try {
+						r = toProcess.take();
+					} catch (InterruptedException e) {
+						break;
+					}
+					working = true;
+					boolean passedOn = false;
+					try {
+						// it may have sat in the queue a while
+						if (!parent.pipeline.isStale(r.job)) {
+							render(r);
+							parent.pipeline.rendered(r);
+							passedOn = true;
 						}
-					} else {
-						synchronized (toProcess) {
-							toProcess.wait();
+					} catch (Exception e) {
+						parent.pipeline.fail(r, e);
+					} finally {
+						working = false;
+						load.decrementAndGet();
+						if (!passedOn) {
+							parent.pipeline.done(r);
 						}
 					}
 				}
@@ -111,160 +107,63 @@ public class RenderThread extends Thread {
 		}
 	}
 
-	public void process(Delivery delivery) throws IOException {
-		toProcess.addLast(delivery);
-		synchronized (toProcess) {
-			toProcess.notify();
+	/**
+	 * Queues a decoded job, waiting if this thread already has as many as it
+	 * may hold.
+	 */
+	void process(Render r) throws InterruptedException {
+		load.incrementAndGet();
+		try {
+			toProcess.putLast(r);
+		} catch (InterruptedException e) {
+			load.decrementAndGet();
+			throw e;
 		}
 	}
 	
-	private void processDelivery(Delivery delivery) throws Exception {
-		BasicProperties props = delivery.getProperties();
-		BasicProperties replyProps = new BasicProperties.Builder().correlationId(props.getCorrelationId()).build();
-		DataInputStream data = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(delivery.getBody())));
-		RenderMode mode = RenderMode.values()[data.readUnsignedByte()];
-		int width = data.readUnsignedShort();
-		int height = data.readUnsignedShort();
-		int supersampling = data.readUnsignedByte();
-		GameProfile profile = Profiles.readGameProfile(data);
-		Map<String, String[]> params = Maps.newHashMap();
-		int len = data.readUnsignedShort();
-		for (int i = 0; i < len; i++) {
-			String key = data.readUTF();
-			String[] val = new String[data.readUnsignedByte()];
-			for (int v = 0; v < val.length; v++) {
-				val[v] = data.readUTF();
-			}
-			params.put(key, val);
-		}
-		byte[] skinData = new byte[data.readInt()];
-		data.readFully(skinData);
-		BufferedImage skinRaw = new PngImage().read(new ByteArrayInputStream(skinData), false);
-		BufferedImage skin = Images.toARGB(skinRaw);
-		Visage.log.info("Received a job to render a "+width+"x"+height+" "+mode.name().toLowerCase()+" ("+supersampling+"x supersampling) for "+(profile == null ? "null" : profile.getName()));
-		byte[] pngBys = draw(mode, width, height, supersampling, profile, skin, params);
-		if (Visage.trace) Visage.log.finest("Got png bytes");
-		parent.channel.basicPublish("", props.getReplyTo(), replyProps, buildResponse(0, pngBys));
-		if (Visage.trace) Visage.log.finest("Published response");
-		parent.channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
-		if (Visage.trace) Visage.log.finest("Ack'd message");
+	/**
+	 * @return how many jobs this thread has to get through, including the one
+	 * 		it is working on
+	 */
+	public int getLoad() {
+		return load.get();
 	}
-
-	private byte[] buildResponse(int type, byte[] payload) throws IOException {
-		if (Visage.trace) Visage.log.finest("Building response of type "+type);
-		ByteArrayOutputStream result = new ByteArrayOutputStream();
-		new DataOutputStream(result).writeUTF(parent.name);
-		result.write(type);
-		result.write(payload);
-		byte[] resp = result.toByteArray();
-		if (Visage.trace) Visage.log.finest("Built - "+resp.length+" bytes long");
-		return resp;
+	
+	public boolean isWorking() {
+		return working;
 	}
-
-	public byte[] draw(RenderMode mode, int width, int height, int supersampling, GameProfile profile, BufferedImage skin, Map<String, String[]> params) throws Exception {
-		boolean slim = Profiles.isSlim(profile);
-		//BufferedImage cape;
-		BufferedImage out;
-		if (skin.getHeight() == 32) {
-			if (Visage.debug) Visage.log.finer("Skin is legacy; painting onto new-style canvas");
-			BufferedImage canvas = new BufferedImage(64, 64, BufferedImage.TYPE_INT_ARGB);
-			Graphics2D g = canvas.createGraphics();
-			g.drawImage(skin, 0, 0, null);
-			g.drawImage(flipLimb(skin.getSubimage(0, 16, 16, 16)), 16, 48, null);
-			g.drawImage(flipLimb(skin.getSubimage(40, 16, 16, 16)), 32, 48, null);
-			g.dispose();
-			skin = canvas;
-		}
-		int color = skin.getRGB(32, 8);
-		boolean equal = true;
-		for (int x = 32; x < 64; x++) {
-			for (int y = 0; y < 16; y++) {
-				if (x < 40 && y < 8) continue;
-				if (x > 54 && y < 8) continue;
-				if (skin.getRGB(x, y) != color) {
-					equal = false;
-					break;
-				}
+	
+	private void render(Render r) throws RenderException {
+		long start = System.nanoTime();
+		RenderRequest req = r.req;
+		Renderer renderer = renderers[req.mode.ordinal()];
+		try {
+			if (!renderer.isInitialized()) {
+				if (Visage.trace) Visage.log.finest("Initialized renderer");
+				renderer.init(req.supersampling);
 			}
-		}
-		if (equal) {
-			if (Visage.debug) Visage.log.finer("Skin has solid colored helm, stripping");
-			skin.setRGB(32, 0, 32, 16, new int[32*64], 0, 32);
-		}
-		if (Visage.trace) Visage.log.finest("Got skin");
-		if (Visage.trace) Visage.log.finest(mode.name());
-		switch (mode) {
-			case FACE:
-				width /= supersampling;
-				height /= supersampling;
-				out = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-				int border = width/24;
-				Image face = skin.getSubimage(8, 8, 8, 8).getScaledInstance(width-(border*2), height-(border*2), Image.SCALE_FAST);
-				Image helm = skin.getSubimage(40, 8, 8, 8).getScaledInstance(width, height, Image.SCALE_FAST);
-				Graphics2D g2d = out.createGraphics();
-				g2d.drawImage(face, border, border, null);
-				g2d.drawImage(helm, 0, 0, null);
-				g2d.dispose();
-				break;
-			case SKIN:
-				out = skin;
-				break;
-			default: {
-				Renderer renderer = renderers[mode.ordinal()];
-				if (!renderer.isInitialized()) {
-					if (Visage.trace) Visage.log.finest("Initialized renderer");
-					renderer.init(supersampling);
-				}
-				try {
-					if (Visage.trace) Visage.log.finest("Uploading");
-					renderer.setSkin(skin);
-					if (Visage.trace) Visage.log.finest("Rendering");
-					renderer.render(width, height);
-					if (Visage.trace) Visage.log.finest("Rendered - reading pixels");
-					out = renderer.readPixels(width, height);
-					if (Visage.trace) Visage.log.finest("Rescaled image");
-				} finally {
-					renderer.finish();
-					if (Visage.trace) Visage.log.finest("Finished renderer");
-				}
-				break;
+			try {
+				if (Visage.trace) Visage.log.finest("Uploading");
+				renderer.setSkin(r.skin);
+				if (Visage.trace) Visage.log.finest("Rendering");
+				renderer.render(req.width, req.height);
+				if (Visage.trace) Visage.log.finest("Rendered - reading pixels");
+				r.pixels = renderer.readPixels(req.width, req.height);
+			} finally {
+				renderer.finish();
+				if (Visage.trace) Visage.log.finest("Finished renderer");
 			}
+		} catch (Exception e) {
+			throw new RenderException(ErrorCode.RENDER_FAILED, "Could not render", e);
 		}
-		ByteArrayOutputStream png = new ByteArrayOutputStream();
-		ImageIO.write(out, "PNG", png);
-		if (Visage.trace) Visage.log.finest("Wrote png");
-		return png.toByteArray();
+		r.width = req.width;
+		r.height = req.height;
+		r.supersampled = true;
+		r.reply.timings[Stage.RENDER.ordinal()] = micros(System.nanoTime()-start);
 	}
 
-	private BufferedImage flipLimb(BufferedImage in) {
-		BufferedImage out = new BufferedImage(in.getWidth(), in.getHeight(), BufferedImage.TYPE_INT_ARGB);
-		
-		BufferedImage front = flipHorziontally(in.getSubimage(4, 4, 4, 12));
-		BufferedImage back = flipHorziontally(in.getSubimage(12, 4, 4, 12));
-		
-		BufferedImage top = flipHorziontally(in.getSubimage(4, 0, 4, 4));
-		BufferedImage bottom = flipHorziontally(in.getSubimage(8, 0, 4, 4));
-		
-		BufferedImage left = in.getSubimage(8, 4, 4, 12);
-		BufferedImage right = in.getSubimage(0, 4, 4, 12);
-		
-		Graphics2D g = out.createGraphics();
-		g.drawImage(front, 4, 4, null);
-		g.drawImage(back, 12, 4, null);
-		g.drawImage(top, 4, 0, null);
-		g.drawImage(bottom, 8, 0, null);
-		g.drawImage(left, 0, 4, null); // left goes to right
-		g.drawImage(right, 8, 4, null); // right goes to left
-		g.dispose();
-		return out;
-	}
-	
-	private BufferedImage flipHorziontally(BufferedImage in) {
-		BufferedImage out = new BufferedImage(in.getWidth(), in.getHeight(), BufferedImage.TYPE_INT_ARGB);
-		Graphics2D g = out.createGraphics();
-		g.drawImage(in, 0, 0, in.getWidth(), in.getHeight(), in.getWidth(), 0, 0, in.getHeight(), null);
-		g.dispose();
-		return out;
+	private static int micros(long nanos) {
+		return (int)Math.min(Integer.MAX_VALUE, TimeUnit.NANOSECONDS.toMicros(nanos));
 	}
 	
 	public void finish() {
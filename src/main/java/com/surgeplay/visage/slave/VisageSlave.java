@@ -24,9 +24,19 @@
  */
 package com.surgeplay.visage.slave;
 
+import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import org.lwjgl.opengl.ContextAttribs;
@@ -36,18 +46,30 @@ import org.lwjgl.opengl.Pbuffer;
 import org.lwjgl.opengl.PixelFormat;
 import org.spacehq.mc.auth.service.SessionService;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.gson.Gson;
+import com.rabbitmq.client.AMQP.BasicProperties;
 import com.rabbitmq.client.Channel;
 import com.rabbitmq.client.Connection;
 import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
 import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 import com.rabbitmq.client.QueueingConsumer.Delivery;
 import com.surgeplay.visage.Visage;
 import com.surgeplay.visage.VisageRunner;
+import com.surgeplay.visage.protocol.LoadReport;
+import com.surgeplay.visage.protocol.RenderProtocol;
+import com.surgeplay.visage.slave.RenderPipeline.Render;
+import com.surgeplay.visage.util.ChannelPool;
 import com.typesafe.config.Config;
 
 public class VisageSlave extends Thread implements VisageRunner {
@@ -59,13 +81,67 @@ public class VisageSlave extends Thread implements VisageRunner {
 	protected ConnectionFactory factory;
 	protected Connection conn;
 	protected Channel channel;
-	protected List<RenderThread> threads = Lists.newArrayList();
+	/** Everything but job deliveries, so the job channel's delivery tags have no gaps. */
+	protected Channel control;
+	protected List<RenderThread> threads = new CopyOnWriteArrayList<>();
 	protected int idx = 0;
 	protected final String queue;
-	private boolean run = true;
+	protected final List<Subscription> subscriptions = Lists.newArrayList();
+	protected QueueingConsumer consumer;
+	protected final Cache<String, BufferedImage> skins;
+	protected AckBatcher acks;
+	protected ChannelPool publishers;
+	protected final Cache<String, Boolean> cancelled = CacheBuilder.newBuilder()
+			.expireAfterWrite(1, TimeUnit.MINUTES)
+			.maximumSize(10000)
+			.build();
+	protected final AtomicLong expiredJobs = new AtomicLong();
+	protected final AtomicLong cancelledJobs = new AtomicLong();
+	protected final boolean embedded;
+	protected final AtomicInteger queued = new AtomicInteger();
+	protected final int maxQueued;
+	protected final int pngCompression;
+	/** Compresses large renders on several threads, or null to use only the encode thread. */
+	protected final ForkJoinPool pngPool;
+	protected final int decodeThreads;
+	protected final int encodeThreads;
+	protected final int stageQueueSize;
+	protected RenderPipeline pipeline;
+	/** Identifies this run of the slave to masters, as names needn't be unique. */
+	protected final String id = UUID.randomUUID().toString();
+	protected final long reportInterval;
+	protected String directQueue;
+	protected final List<String> queueNames = Lists.newArrayList();
+	protected ScheduledExecutorService reporter;
+	/** Done once the render threads are running, or failed if they never will be. */
+	private final SettableFuture<Void> ready = SettableFuture.create();
+	private int latency = 0;
+	private volatile boolean run = true;
 	public VisageSlave(Config config) {
+		this(config, false);
+	}
+	
+	/**
+	 * @param embedded if true, don't connect to RabbitMQ, and only take jobs
+	 * 		given to {@link #submit}
+	 */
+	public VisageSlave(Config config, boolean embedded) {
 		super("Slave thread");
 		this.config = config;
+		this.embedded = embedded;
+		maxQueued = config.getInt("renderers")*(config.hasPath("queue-depth") ? config.getInt("queue-depth") : 4);
+		pngCompression = config.hasPath("png-compression") ? config.getInt("png-compression") : 6;
+		int pngThreads = config.hasPath("png-threads") ? config.getInt("png-threads") : 0;
+		if (pngThreads == 0) {
+			pngThreads = Runtime.getRuntime().availableProcessors();
+		}
+		pngPool = pngThreads > 1 ? new ForkJoinPool(pngThreads) : null;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		int decode = config.hasPath("decode-threads") ? config.getInt("decode-threads") : 0;
+		decodeThreads = decode == 0 ? cpus : decode;
+		int encode = config.hasPath("encode-threads") ? config.getInt("encode-threads") : 0;
+		encodeThreads = encode == 0 ? cpus : encode;
+		stageQueueSize = config.hasPath("stage-queue-size") ? config.getInt("stage-queue-size") : 2;
 		try {
 			name = config.getString("name");
 			if (name.startsWith("~")) {
@@ -79,8 +155,36 @@ public class VisageSlave extends Thread implements VisageRunner {
 			name = "unnamed slave";
 		}
 		Visage.log.info("Slave name is '"+name+"'");
-		queue = config.getString("rabbitmq.queue");
 		explodeOnError = config.hasPath("explode-on-error") && config.getBoolean("explode-on-error");
+		skins = CacheBuilder.newBuilder()
+				.maximumSize(config.hasPath("skin-cache-size") ? config.getInt("skin-cache-size") : 512)
+				.build();
+		if (embedded) {
+			queue = null;
+			reportInterval = 0;
+			return;
+		}
+		reportInterval = config.hasPath("load-report-interval") ? config.getDuration("load-report-interval", TimeUnit.MILLISECONDS) : 100;
+		queue = config.getString("rabbitmq.queue");
+		int weight = config.getInt("weight");
+		int qos = config.getInt("qos");
+		if (config.hasPath("queues")) {
+			for (Config c : config.getConfigList("queues")) {
+				subscriptions.add(new Subscription(RenderProtocol.getCostClassQueue(queue, c.getString("class")),
+						c.hasPath("qos") ? c.getInt("qos") : qos,
+						weight+(c.hasPath("priority") ? c.getInt("priority") : 0)));
+			}
+		} else if (config.hasPath("rabbitmq.cost-classes") && !config.getConfigList("rabbitmq.cost-classes").isEmpty()) {
+			// the master's fallback slave, which takes every class
+			for (Config c : config.getConfigList("rabbitmq.cost-classes")) {
+				subscriptions.add(new Subscription(RenderProtocol.getCostClassQueue(queue, c.getString("name")), qos, weight));
+			}
+		} else {
+			subscriptions.add(new Subscription(queue, qos, weight));
+		}
+		for (Subscription sub : subscriptions) {
+			queueNames.add(sub.queue);
+		}
 	}
 	
 	@Override
@@ -109,6 +213,28 @@ public class VisageSlave extends Thread implements VisageRunner {
 				Visage.log.fine("Visage fully supports your OS and graphics driver.");
 			}
 			test.destroy();
+			if (embedded) {
+				startThreads();
+				Visage.log.info("Waiting for jobs from the master");
+				synchronized (this) {
+					while (run) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							break;
+						}
+					}
+				}
+				Visage.log.info("Shutting down slave");
+				for (RenderThread rt : threads) {
+					rt.finish();
+				}
+				pipeline.shutdown();
+				if (pngPool != null) {
+					pngPool.shutdown();
+				}
+				return;
+			}
 			factory = new ConnectionFactory();
 			factory.setHost(config.getString("rabbitmq.host"));
 			factory.setPort(config.getInt("rabbitmq.port"));
@@ -118,34 +244,47 @@ public class VisageSlave extends Thread implements VisageRunner {
 				factory.setUsername(config.getString("rabbitmq.user"));
 				factory.setPassword(config.getString("rabbitmq.password"));
 			}
+			long ackInterval = config.hasPath("ack-interval") ? config.getDuration("ack-interval", TimeUnit.MILLISECONDS) : 0;
+			int totalQos = 0;
+			for (Subscription sub : subscriptions) {
+				totalQos = sub.qos == -1 || totalQos == -1 ? -1 : totalQos+sub.qos;
+			}
+			if (reportInterval > 0) {
+				// the direct queue's consumer gets a prefetch of its own
+				int qos = config.getInt("qos");
+				totalQos = qos == -1 || totalQos == -1 ? -1 : totalQos+qos;
+			}
+			acks = new AckBatcher(ackInterval, totalQos == -1 ? Integer.MAX_VALUE : totalQos/2);
 			reconnect();
 			
-			Visage.log.info("Setting up "+config.getInt("renderers")+" render threads");
-			for (int i = 0; i < config.getInt("renderers"); i++) {
-				RenderThread rt = new RenderThread(this);
-				threads.add(rt);
-				rt.start();
-			}
+			startThreads();
 			
-			QueueingConsumer consumer = new QueueingConsumer(channel);
-			Map<String, Object> args = Maps.newHashMap();
-			args.put("x-priority", config.getInt("weight"));
-			channel.basicConsume(queue, false, args, consumer);
+			subscribe();
+			if (reportInterval > 0) {
+				reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder().setNameFormat("Load report thread").setDaemon(true).build());
+				reporter.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							report();
+						} catch (Exception e) {
+							if (Visage.debug) Visage.log.log(Level.FINER, "Could not send load report", e);
+						}
+					}
+				}, 0, reportInterval, TimeUnit.MILLISECONDS);
+			}
 			Visage.log.info("Listening for jobs");
 			try {
 				while (run) {
 					try {
 						Delivery delivery = consumer.nextDelivery();
-						if (Visage.debug) Visage.log.finer("Received job, passing on to render thread");
-						RenderThread thread = threads.get(idx);
-						thread.process(delivery);
-						idx++;
-						if (idx >= threads.size()) {
-							idx = 0;
-						}
+						if (Visage.debug) Visage.log.finer("Received job, passing on to decode thread");
+						queued.incrementAndGet();
+						pipeline.submit(new AmqpRenderJob(this, channel, delivery));
 					} catch (ShutdownSignalException e) {
 						try { conn.close(); } catch (Exception ex) {}
 						reconnect();
+						subscribe();
 					} catch (InterruptedException e) {
 						break;
 					}
@@ -158,6 +297,16 @@ public class VisageSlave extends Thread implements VisageRunner {
 				for (RenderThread rt : threads) {
 					rt.finish();
 				}
+				pipeline.shutdown();
+				if (pngPool != null) {
+					pngPool.shutdown();
+				}
+				if (reporter != null) {
+					reporter.shutdown();
+				}
+				acks.shutdown();
+				if (Visage.debug) Visage.log.finer("Sent "+acks.getAcks()+" acks for "+acks.getAckedJobs()+" jobs");
+				if (Visage.debug) Visage.log.finer("Skipped "+expiredJobs.get()+" expired and "+cancelledJobs.get()+" cancelled jobs");
 				conn.close(5000);
 			} catch (Exception e) {
 				Visage.log.log(Level.SEVERE, "A fatal error has occurred while shutting down the slave.", e);
@@ -165,17 +314,175 @@ public class VisageSlave extends Thread implements VisageRunner {
 		} catch (Exception e) {
 			Visage.log.log(Level.SEVERE, "A fatal error has occurred while setting up the slave.", e);
 		}
+		// no-op unless the slave gave up before starting its render threads
+		ready.setException(new IllegalStateException("The slave could not start"));
 	}
 
 	private void reconnect() throws IOException {
 		Visage.log.info("Connecting to RabbitMQ at "+config.getString("rabbitmq.host")+":"+config.getInt("rabbitmq.port"));
 		conn = factory.newConnection();
 		channel = conn.createChannel();
-		if (Visage.debug) Visage.log.finer("Setting up queue '"+queue+"'");
-		channel.queueDeclare(queue, false, false, true, null);
-		int qos = config.getInt("qos");
-		if (qos != -1) {
-			channel.basicQos(qos);
+		acks.reset(channel);
+		// as many channels as encode threads, which send most replies; threads get
+		// channels in turn as they first publish, and share them past that
+		boolean confirms = !config.hasPath("publisher-confirms") || config.getBoolean("publisher-confirms");
+		publishers = new ChannelPool(conn, encodeThreads, confirms, null);
+		for (Subscription sub : subscriptions) {
+			if (Visage.debug) Visage.log.finer("Setting up queue '"+sub.queue+"'");
+			channel.queueDeclare(sub.queue, false, false, true, null);
+		}
+		if (reportInterval > 0) {
+			directQueue = RenderProtocol.getSlaveQueue(queue, id);
+			if (Visage.debug) Visage.log.finer("Setting up queue '"+directQueue+"'");
+			channel.queueDeclare(directQueue, false, true, true, null);
+		}
+		control = conn.createChannel();
+		if (reportInterval > 0) {
+			control.exchangeDeclare(RenderProtocol.getLoadExchange(queue), "fanout");
+		}
+		String cancelExchange = RenderProtocol.getCancelExchange(queue);
+		control.exchangeDeclare(cancelExchange, "fanout");
+		String cancelQueue = control.queueDeclare().getQueue();
+		control.queueBind(cancelQueue, cancelExchange, "");
+		control.basicConsume(cancelQueue, true, new DefaultConsumer(control) {
+			@Override
+			public void handleDelivery(String consumerTag, Envelope envelope, BasicProperties properties, byte[] body) {
+				cancel(new String(body, StandardCharsets.UTF_8));
+			}
+		});
+	}
+
+	private void startThreads() {
+		int renderers = config.getInt("renderers");
+		Visage.log.info("Setting up "+renderers+" render threads, "+decodeThreads+" decode threads and "+encodeThreads+" encode threads");
+		// embedded slaves are submitted to from request threads, which
+		// shouldn't have to wait for room
+		pipeline = new RenderPipeline(this, decodeThreads, Math.max(renderers*stageQueueSize, maxQueued),
+				encodeThreads, renderers*stageQueueSize);
+		for (int i = 0; i < renderers; i++) {
+			RenderThread rt = new RenderThread(this, stageQueueSize);
+			threads.add(rt);
+			rt.start();
+		}
+		ready.set(null);
+	}
+	
+	/**
+	 * @return a future that completes once this slave can take jobs, or fails
+	 * 		if it couldn't start
+	 */
+	public ListenableFuture<Void> getReady() {
+		return ready;
+	}
+	
+	/**
+	 * Gives a decoded job to the render thread with the least jobs left to
+	 * do, so one long render doesn't hold up the jobs behind it.
+	 */
+	void dispatch(Render r) throws InterruptedException {
+		RenderThread best = null;
+		// waiting for room happens outside the lock, so other stages aren't
+		// held up by a busy render thread
+		synchronized (this) {
+			int bestLoad = Integer.MAX_VALUE;
+			// start from a different thread each time so ties are spread evenly
+			for (int i = 0; i < threads.size(); i++) {
+				RenderThread rt = threads.get((idx+i) % threads.size());
+				int load = rt.getLoad();
+				if (load < bestLoad) {
+					best = rt;
+					bestLoad = load;
+				}
+			}
+			idx = (idx+1) % threads.size();
+		}
+		best.process(r);
+	}
+	
+	/**
+	 * Hands a job to the render pipeline directly, for embedded slaves.
+	 * 
+	 * @return false if the slave isn't ready yet (see {@link #getReady}) or
+	 * 		already has as many jobs waiting as it's allowed
+	 */
+	public boolean submit(RenderJob job) {
+		if (threads.isEmpty()) return false;
+		if (queued.incrementAndGet() > maxQueued) {
+			queued.decrementAndGet();
+			return false;
+		}
+		pipeline.submit(job);
+		return true;
+	}
+	
+	void jobFinished() {
+		queued.decrementAndGet();
+	}
+	
+	synchronized void recordLatency(int micros) {
+		latency = latency == 0 ? micros : latency+(micros-latency)/8;
+	}
+	
+	private synchronized int getLatency() {
+		return latency;
+	}
+	
+	/**
+	 * Tells masters how busy this slave is, so they can send jobs straight to
+	 * its own queue while it has render threads to spare.
+	 */
+	private void report() throws IOException {
+		LoadReport load = new LoadReport();
+		load.id = id;
+		load.name = name;
+		load.renderers = threads.size();
+		int loads = 0;
+		for (RenderThread rt : threads) {
+			if (rt.isWorking()) load.busy++;
+			loads += rt.getLoad();
+		}
+		// jobs still being decoded will want a render thread too
+		load.waiting = Math.max(0, loads-load.busy)+pipeline.getDecoding();
+		load.latency = getLatency();
+		load.queues = queueNames;
+		publishers.publish(RenderProtocol.getLoadExchange(queue), "", null, RenderProtocol.encodeLoad(load));
+	}
+	
+	/**
+	 * Skips any jobs with the given token that haven't started yet.
+	 */
+	public void cancel(String token) {
+		cancelled.put(token, Boolean.TRUE);
+	}
+	
+	private void subscribe() throws IOException {
+		consumer = new QueueingConsumer(channel);
+		for (Subscription sub : subscriptions) {
+			// applies to each consumer started after it
+			channel.basicQos(sub.qos == -1 ? 0 : sub.qos);
+			Map<String, Object> args = Maps.newHashMap();
+			args.put("x-priority", sub.priority);
+			channel.basicConsume(sub.queue, false, args, consumer);
+		}
+		if (directQueue != null) {
+			int qos = config.getInt("qos");
+			channel.basicQos(qos == -1 ? 0 : qos);
+			channel.basicConsume(directQueue, false, consumer);
+		}
+	}
+
+	/**
+	 * A queue to take jobs from, how many of its jobs to hold at once, and the
+	 * priority over other slaves taking jobs from it.
+	 */
+	protected static class Subscription {
+		public final String queue;
+		public final int qos;
+		public final int priority;
+		public Subscription(String queue, int qos, int priority) {
+			this.queue = queue;
+			this.qos = qos;
+			this.priority = priority;
 		}
 	}
 
@@ -24,7 +24,6 @@
  */
 package com.surgeplay.visage.slave.render;
 
-import java.awt.Image;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -43,7 +42,6 @@ import org.lwjgl.opengl.PixelFormat;
 import com.google.common.collect.Lists;
 import com.surgeplay.visage.Visage;
 import com.surgeplay.visage.slave.render.primitive.Primitive;
-import com.surgeplay.visage.util.Images;
 
 import static com.surgeplay.visage.slave.util.Errors.checkGLError;
 
@@ -301,15 +299,18 @@ public abstract class Renderer {
 	public void finish() throws LWJGLException {
 		pbuffer.releaseContext();
 	}
-	public BufferedImage readPixels(int width, int height) throws InterruptedException {
+	/**
+	 * Reads back what was drawn at its full size. Shrinking it by the
+	 * supersampling factor is left to the caller, so the context is free for
+	 * the next render sooner.
+	 */
+	public int[] readPixels(int width, int height) {
 		glReadBuffer(GL_FRONT);
 		ByteBuffer buf = BufferUtils.createByteBuffer(width * height * 4);
 		glReadPixels(0, 0, width, height, GL_BGRA, GL_UNSIGNED_BYTE, buf);
-		BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 		int[] pixels = new int[width*height];
 		buf.asIntBuffer().get(pixels);
-		img.setRGB(0, 0, width, height, pixels, 0, width);
 		if (Visage.trace) Visage.log.finest("Read pixels");
-		return Images.toBuffered(img.getScaledInstance(width/supersampling, height/supersampling, Image.SCALE_AREA_AVERAGING));
+		return pixels;
 	}
 }
@@ -0,0 +1,232 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.util;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.rabbitmq.client.AMQP.BasicProperties;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.surgeplay.visage.Visage;
+
+/**
+ * A fixed set of channels for publishing from many threads at once. Each
+ * thread always publishes on the same channel, handed out in turn the first
+ * time it publishes, so up to as many threads as there are channels never
+ * share one. Only threads sharing a channel contend with each other. Channels that get closed
+ * are replaced on next use.
+ * <p>
+ * With publisher confirms, publishing doesn't wait for the broker; the
+ * returned future completes when the broker confirms the message, and fails
+ * if the broker rejects it or the channel closes first.
+ */
+public class ChannelPool {
+	/**
+	 * Called for every channel the pool creates, before anything is published
+	 * on it.
+	 */
+	public interface Setup {
+		void setup(Channel channel) throws IOException;
+	}
+	
+	private static final ListenableFuture<Void> CONFIRMED = Futures.immediateFuture(null);
+	
+	private final Connection conn;
+	private final boolean confirms;
+	private final Setup setup;
+	private final Slot[] slots;
+	private final AtomicInteger nextSlot = new AtomicInteger();
+	private final ThreadLocal<Slot> threadSlot = new ThreadLocal<Slot>() {
+		@Override
+		protected Slot initialValue() {
+			return slots[(nextSlot.getAndIncrement() & Integer.MAX_VALUE) % slots.length];
+		}
+	};
+	private final AtomicLong published = new AtomicLong();
+	private final AtomicLong confirmed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	
+	public ChannelPool(Connection conn, int size, boolean confirms, Setup setup) {
+		this.conn = conn;
+		this.confirms = confirms;
+		this.setup = setup;
+		slots = new Slot[Math.max(1, size)];
+		for (int i = 0; i < slots.length; i++) {
+			slots[i] = new Slot();
+		}
+	}
+	
+	/**
+	 * Creates every channel up front, rather than on first use.
+	 */
+	public void open() throws IOException {
+		for (Slot slot : slots) {
+			synchronized (slot) {
+				slot.channel();
+			}
+		}
+	}
+	
+	public ListenableFuture<Void> publish(String exchange, String routingKey, BasicProperties props, byte[] body) throws IOException {
+		return publish(exchange, routingKey, false, props, body);
+	}
+	
+	/**
+	 * @param mandatory if true, the broker returns the message to the channel's
+	 * 		return listeners if it can't be routed to any queue
+	 */
+	public ListenableFuture<Void> publish(String exchange, String routingKey, boolean mandatory, BasicProperties props, byte[] body) throws IOException {
+		Slot slot = threadSlot.get();
+		synchronized (slot) {
+			Channel channel = slot.channel();
+			published.incrementAndGet();
+			if (!confirms) {
+				channel.basicPublish(exchange, routingKey, mandatory, props, body);
+				return CONFIRMED;
+			}
+			long seq = channel.getNextPublishSeqNo();
+			SettableFuture<Void> future = SettableFuture.create();
+			slot.confirms.unconfirmed.put(seq, future);
+			try {
+				channel.basicPublish(exchange, routingKey, mandatory, props, body);
+			} catch (IOException e) {
+				slot.confirms.unconfirmed.remove(seq);
+				throw e;
+			}
+			return future;
+		}
+	}
+	
+	public long getPublished() {
+		return published.get();
+	}
+	
+	public long getConfirmed() {
+		return confirmed.get();
+	}
+	
+	public long getRejected() {
+		return rejected.get();
+	}
+	
+	public int getUnconfirmed() {
+		int count = 0;
+		for (Slot slot : slots) {
+			Confirms c = slot.confirms;
+			if (c != null) {
+				count += c.unconfirmed.size();
+			}
+		}
+		return count;
+	}
+	
+	private class Slot {
+		private Channel channel;
+		private volatile Confirms confirms;
+		
+		private Channel channel() throws IOException {
+			if (channel == null || !channel.isOpen()) {
+				if (channel != null && Visage.debug) Visage.log.finer("Replacing closed channel "+channel.getChannelNumber());
+				Channel ch = conn.createChannel();
+				if (ChannelPool.this.confirms) {
+					Confirms c = new Confirms();
+					ch.confirmSelect();
+					ch.addConfirmListener(c);
+					ch.addShutdownListener(c);
+					confirms = c;
+				}
+				if (setup != null) {
+					setup.setup(ch);
+				}
+				channel = ch;
+			}
+			return channel;
+		}
+	}
+	
+	/**
+	 * Tracks the unconfirmed messages of one channel. Sequence numbers start
+	 * over with every channel, so this is never reused.
+	 */
+	private class Confirms implements ConfirmListener, ShutdownListener {
+		private final ConcurrentNavigableMap<Long, SettableFuture<Void>> unconfirmed = new ConcurrentSkipListMap<>();
+		
+		@Override
+		public void handleAck(long deliveryTag, boolean multiple) {
+			if (multiple) {
+				Map<Long, SettableFuture<Void>> done = unconfirmed.headMap(deliveryTag, true);
+				for (SettableFuture<Void> future : done.values()) {
+					future.set(null);
+					confirmed.incrementAndGet();
+				}
+				done.clear();
+			} else {
+				SettableFuture<Void> future = unconfirmed.remove(deliveryTag);
+				if (future != null) {
+					future.set(null);
+					confirmed.incrementAndGet();
+				}
+			}
+		}
+		
+		@Override
+		public void handleNack(long deliveryTag, boolean multiple) {
+			if (Visage.debug) Visage.log.finer("Broker rejected message "+deliveryTag+(multiple ? " and those before it" : ""));
+			if (multiple) {
+				Map<Long, SettableFuture<Void>> done = unconfirmed.headMap(deliveryTag, true);
+				for (SettableFuture<Void> future : done.values()) {
+					future.setException(new IOException("Message was rejected by the broker"));
+					rejected.incrementAndGet();
+				}
+				done.clear();
+			} else {
+				SettableFuture<Void> future = unconfirmed.remove(deliveryTag);
+				if (future != null) {
+					future.setException(new IOException("Message was rejected by the broker"));
+					rejected.incrementAndGet();
+				}
+			}
+		}
+		
+		@Override
+		public void shutdownCompleted(ShutdownSignalException cause) {
+			for (SettableFuture<Void> future : unconfirmed.values()) {
+				future.setException(cause);
+			}
+			unconfirmed.clear();
+		}
+	}
+}
@@ -0,0 +1,160 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+import com.surgeplay.visage.Visage;
+
+/**
+ * A hashed timing wheel, as described by Varghese and Lauck. Scheduling and
+ * cancelling are O(1) and never block; all expiry work happens on a single
+ * worker thread, which only ever wakes up once per tick.
+ */
+public class HashedWheelTimer {
+	private final long tickNanos;
+	private final List<Timeout>[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pending = new ConcurrentLinkedQueue<>();
+	private final Thread worker;
+	private volatile boolean run = true;
+	private long startTime;
+	private long tick = 0;
+	
+	@SuppressWarnings("unchecked")
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+		int size = Integer.highestOneBit(Math.max(1, ticksPerWheel - 1)) << 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.wheel = (List<Timeout>[]) new List<?>[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new ArrayList<>();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		worker = new Thread(name) {
+			@Override
+			public void run() {
+				HashedWheelTimer.this.run();
+			}
+		};
+		worker.setDaemon(true);
+		worker.start();
+	}
+	
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		Timeout timeout = new Timeout(task, System.nanoTime() + unit.toNanos(delay));
+		pending.add(timeout);
+		return timeout;
+	}
+	
+	public void stop() {
+		run = false;
+		worker.interrupt();
+	}
+	
+	private void run() {
+		while (run) {
+			long deadline = startTime + ((tick + 1) * tickNanos);
+			long sleep = deadline - System.nanoTime();
+			if (sleep > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleep);
+				} catch (InterruptedException e) {
+					continue;
+				}
+			}
+			transferPending();
+			expire(wheel[(int) (tick & mask)]);
+			tick++;
+		}
+	}
+	
+	private void transferPending() {
+		Timeout timeout;
+		while ((timeout = pending.poll()) != null) {
+			if (timeout.isCancelled()) continue;
+			long ticks = Math.max((timeout.deadline - startTime) / tickNanos, tick);
+			timeout.rounds = (ticks - tick) / wheel.length;
+			wheel[(int) (ticks & mask)].add(timeout);
+		}
+	}
+	
+	private void expire(List<Timeout> bucket) {
+		int kept = 0;
+		for (int i = 0; i < bucket.size(); i++) {
+			Timeout timeout = bucket.get(i);
+			if (timeout.isCancelled()) continue;
+			if (timeout.rounds > 0) {
+				timeout.rounds--;
+				bucket.set(kept++, timeout);
+				continue;
+			}
+			timeout.expire();
+		}
+		bucket.subList(kept, bucket.size()).clear();
+	}
+	
+	public static class Timeout {
+		private static final int WAITING = 0, CANCELLED = 1, EXPIRED = 2;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		private long rounds;
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+		
+		/**
+		 * @return true if this call prevented the task from running
+		 */
+		public boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED);
+		}
+		
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+		
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+		
+		private void expire() {
+			if (!state.compareAndSet(WAITING, EXPIRED)) return;
+			try {
+				task.run();
+			} catch (Throwable t) {
+				Visage.log.log(Level.WARNING, "An unexpected error occurred in a timer task", t);
+			}
+		}
+	}
+}
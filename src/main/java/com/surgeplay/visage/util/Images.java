@@ -28,6 +28,8 @@ import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.MediaTracker;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
 
 import javax.swing.JButton;
 
@@ -48,5 +50,107 @@ public class Images {
 		g2d.dispose();
 		return buf;
 	}
+	
+	/**
+	 * @return the image's pixels as ARGB, which is the image's own pixel
+	 * 		array if it has one of exactly the right size and layout
+	 */
+	public static int[] toPixels(BufferedImage img) {
+		int width = img.getWidth();
+		int height = img.getHeight();
+		if (img.getType() == BufferedImage.TYPE_INT_ARGB
+				&& img.getRaster().getDataBuffer().getSize() == width*height
+				&& img.getRaster().getSampleModelTranslateX() == 0
+				&& img.getRaster().getSampleModelTranslateY() == 0) {
+			return ((DataBufferInt)img.getRaster().getDataBuffer()).getData();
+		}
+		return img.getRGB(0, 0, width, height, null, 0, width);
+	}
+	
+	/**
+	 * Shrinks an image by area averaging: each output pixel is the average
+	 * of the part of the input it covers, weighted by alpha so transparent
+	 * pixels don't darken the edges.
+	 */
+	public static int[] downscale(int[] src, int srcWidth, int srcHeight, int width, int height) {
+		Taps xt = new Taps(srcWidth, width);
+		Taps yt = new Taps(srcHeight, height);
+		// horizontal pass, premultiplied; four floats per pixel
+		float[] tmp = new float[width*srcHeight*4];
+		for (int y = 0; y < srcHeight; y++) {
+			int row = y*srcWidth;
+			int o = y*width*4;
+			for (int x = 0; x < width; x++, o += 4) {
+				float a = 0, r = 0, g = 0, b = 0;
+				int t = x*xt.size;
+				for (int i = xt.first[x], end = i+xt.count[x]; i < end; i++, t++) {
+					int p = src[row+i];
+					float pa = (p >>> 24)*xt.weights[t];
+					a += pa;
+					r += ((p >> 16) & 0xFF)*pa;
+					g += ((p >> 8) & 0xFF)*pa;
+					b += (p & 0xFF)*pa;
+				}
+				tmp[o] = a;
+				tmp[o+1] = r;
+				tmp[o+2] = g;
+				tmp[o+3] = b;
+			}
+		}
+		int[] out = new int[width*height];
+		float[] acc = new float[width*4];
+		float area = (srcWidth/(float)width)*(srcHeight/(float)height);
+		for (int y = 0; y < height; y++) {
+			Arrays.fill(acc, 0);
+			int t = y*yt.size;
+			for (int i = yt.first[y], end = i+yt.count[y]; i < end; i++, t++) {
+				float w = yt.weights[t];
+				int row = i*width*4;
+				for (int j = 0; j < acc.length; j++) {
+					acc[j] += tmp[row+j]*w;
+				}
+			}
+			for (int x = 0, o = 0; x < width; x++, o += 4) {
+				float a = acc[o];
+				if (a <= 0) continue;
+				int oa = Math.min(255, (int)(a/area+0.5f));
+				if (oa == 0) continue;
+				float inv = 1/a;
+				out[y*width+x] = (oa << 24)
+						| (Math.min(255, (int)(acc[o+1]*inv+0.5f)) << 16)
+						| (Math.min(255, (int)(acc[o+2]*inv+0.5f)) << 8)
+						| Math.min(255, (int)(acc[o+3]*inv+0.5f));
+			}
+		}
+		return out;
+	}
+	
+	/**
+	 * Which input pixels each output pixel covers along one axis, and by how
+	 * much.
+	 */
+	private static class Taps {
+		public final int size;
+		public final int[] first;
+		public final int[] count;
+		public final float[] weights;
+		public Taps(int srcSize, int size) {
+			double scale = srcSize/(double)size;
+			this.size = (int)Math.ceil(scale)+1;
+			first = new int[size];
+			count = new int[size];
+			weights = new float[size*this.size];
+			for (int i = 0; i < size; i++) {
+				double start = i*scale;
+				double end = Math.min(srcSize, (i+1)*scale);
+				first[i] = (int)start;
+				count[i] = (int)Math.ceil(end)-first[i];
+				for (int j = 0; j < count[i]; j++) {
+					int p = first[i]+j;
+					weights[i*this.size+j] = (float)(Math.min(p+1, end)-Math.max(p, start));
+				}
+			}
+		}
+	}
 
 }
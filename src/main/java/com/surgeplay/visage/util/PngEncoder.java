@@ -0,0 +1,412 @@
+/*
+ * Visage
+ * Copyright (c) 2015-2016, Aesen Vismea <aesen@unascribed.com>
+ *
+ * The MIT License
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package com.surgeplay.visage.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Writes ARGB pixels straight to a PNG, which is much quicker than going
+ * through ImageIO and usually smaller too.
+ * <p>
+ * Images with 256 colors or less, which is most skins and faces, are written
+ * with a palette, at the smallest bit depth that fits. Other images are
+ * written as RGB, or RGBA if anything isn't opaque, with each row filtered
+ * by whichever filter leaves the smallest differences. Fully transparent
+ * pixels are all treated as the same color.
+ * <p>
+ * Given a pool, large images are compressed in parallel the way pigz does
+ * it: the image data is split into chunks that are deflated separately, each
+ * primed with the end of the chunk before it so the ratio barely suffers, and
+ * joined back into one zlib stream.
+ * <p>
+ * Not thread safe; the buffers are reused from one image to the next.
+ */
+public class PngEncoder {
+	private static final byte[] SIGNATURE = { (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' };
+	private static final int IHDR = 0x49484452, PLTE = 0x504C5445, TRNS = 0x74524E53, IDAT = 0x49444154, IEND = 0x49454E44;
+	private static final int COLOR_RGB = 2, COLOR_INDEXED = 3, COLOR_RGBA = 6;
+	private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+	private static final int TABLE_BITS = 10;
+	private static final int MAX_RETAINED_BUFFER_SIZE = 4*1024*1024;
+	private static final int CHUNK_SIZE = 128*1024;
+	private static final int DICTIONARY_SIZE = 32*1024;
+	
+	/** Deflaters for chunks, kept by the pool's threads. */
+	private static final ThreadLocal<Deflater> chunkDeflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+	
+	private final int level;
+	private final Deflater deflater;
+	private final ForkJoinPool pool;
+	private final Adler32 adler = new Adler32();
+	private final CRC32 crc = new CRC32();
+	private final byte[] header = new byte[13];
+	private final byte[] chunkBuf = new byte[8];
+	private final byte[] deflateBuf = new byte[16*1024];
+	// open addressing color -> palette index, for counting colors
+	private final int[] tableColors = new int[1 << TABLE_BITS];
+	private final int[] tableIndices = new int[1 << TABLE_BITS];
+	private final int[] palette = new int[256];
+	private final int[] remap = new int[256];
+	private byte[] prev = new byte[0];
+	private byte[][] rows = new byte[5][0];
+	private ExposedByteArrayOutputStream idat = new ExposedByteArrayOutputStream(16*1024);
+	/** The filtered image data, before compression. */
+	private ExposedByteArrayOutputStream data = new ExposedByteArrayOutputStream(64*1024);
+	
+	/**
+	 * @param level 0-9; trades speed for size the same way as
+	 * 		{@link Deflater}'s levels. At 3 and below, rows are always
+	 * 		filtered the same way instead of picking the best filter for each.
+	 */
+	public PngEncoder(int level) {
+		this(level, null);
+	}
+	
+	/**
+	 * @param pool the pool to compress large images on, or null to always
+	 * 		compress on the calling thread
+	 */
+	public PngEncoder(int level, ForkJoinPool pool) {
+		this.level = Math.max(0, Math.min(9, level));
+		this.deflater = new Deflater(this.level);
+		this.pool = pool;
+	}
+	
+	public void encode(int[] argb, int width, int height, OutputStream out) throws IOException {
+		int len = width*height;
+		int colors = countColors(argb, len);
+		out.write(SIGNATURE);
+		int depth, colorType;
+		if (colors != -1) {
+			colorType = COLOR_INDEXED;
+			depth = colors <= 2 ? 1 : colors <= 4 ? 2 : colors <= 16 ? 4 : 8;
+		} else {
+			colorType = COLOR_RGB;
+			for (int i = 0; i < len; i++) {
+				if ((argb[i] >>> 24) != 0xFF) {
+					colorType = COLOR_RGBA;
+					break;
+				}
+			}
+			depth = 8;
+		}
+		writeInt(header, 0, width);
+		writeInt(header, 4, height);
+		header[8] = (byte)depth;
+		header[9] = (byte)colorType;
+		header[10] = 0;
+		header[11] = 0;
+		header[12] = 0;
+		writeChunk(out, IHDR, header, 0, header.length);
+		
+		data.reset();
+		idat.reset();
+		if (colorType == COLOR_INDEXED) {
+			writePalette(out, colors);
+			writeIndexed(argb, width, height, depth);
+		} else {
+			writeTruecolor(argb, width, height, colorType == COLOR_RGBA ? 4 : 3);
+		}
+		if (pool != null && data.size() >= CHUNK_SIZE*2) {
+			compressParallel();
+		} else {
+			deflater.reset();
+			deflater.setInput(data.getBuffer(), 0, data.size());
+			deflater.finish();
+			while (!deflater.finished()) {
+				int n = deflater.deflate(deflateBuf);
+				idat.write(deflateBuf, 0, n);
+			}
+		}
+		writeChunk(out, IDAT, idat.getBuffer(), 0, idat.size());
+		writeChunk(out, IEND, chunkBuf, 0, 0);
+		if (idat.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			idat = new ExposedByteArrayOutputStream(16*1024);
+		}
+		if (data.capacity() > MAX_RETAINED_BUFFER_SIZE) {
+			data = new ExposedByteArrayOutputStream(64*1024);
+		}
+	}
+	
+	/**
+	 * Deflates each chunk on the pool, and writes them out between a zlib
+	 * header and trailer. Every chunk but the last ends with a sync flush, so
+	 * it ends on a byte boundary and the next chunk can follow it directly.
+	 */
+	private void compressParallel() {
+		final byte[] buf = data.getBuffer();
+		final int len = data.size();
+		int chunks = (len+CHUNK_SIZE-1)/CHUNK_SIZE;
+		List<ForkJoinTask<ExposedByteArrayOutputStream>> tasks = new ArrayList<>(chunks);
+		for (int i = 0; i < chunks; i++) {
+			final int start = i*CHUNK_SIZE;
+			final int end = Math.min(len, start+CHUNK_SIZE);
+			tasks.add(pool.submit(new Callable<ExposedByteArrayOutputStream>() {
+				@Override
+				public ExposedByteArrayOutputStream call() {
+					return deflateChunk(buf, start, end, end == len);
+				}
+			}));
+		}
+		// zlib header, with the level hint matching what was used
+		idat.write(0x78);
+		idat.write(level <= 1 ? 0x01 : level <= 5 ? 0x5E : level == 6 ? 0x9C : 0xDA);
+		adler.reset();
+		adler.update(buf, 0, len);
+		for (ForkJoinTask<ExposedByteArrayOutputStream> task : tasks) {
+			ExposedByteArrayOutputStream chunk = task.join();
+			idat.write(chunk.getBuffer(), 0, chunk.size());
+		}
+		int sum = (int)adler.getValue();
+		idat.write(sum >>> 24);
+		idat.write(sum >>> 16);
+		idat.write(sum >>> 8);
+		idat.write(sum);
+	}
+	
+	private ExposedByteArrayOutputStream deflateChunk(byte[] buf, int start, int end, boolean last) {
+		Deflater d = chunkDeflaters.get();
+		d.reset();
+		d.setLevel(level);
+		if (start > 0) {
+			int dict = Math.min(start, DICTIONARY_SIZE);
+			d.setDictionary(buf, start-dict, dict);
+		}
+		d.setInput(buf, start, end-start);
+		ExposedByteArrayOutputStream out = new ExposedByteArrayOutputStream((end-start)/2);
+		byte[] tmp = new byte[16*1024];
+		if (last) {
+			d.finish();
+			while (!d.finished()) {
+				int n = d.deflate(tmp);
+				out.write(tmp, 0, n);
+			}
+		} else {
+			int n;
+			do {
+				n = d.deflate(tmp, 0, tmp.length, Deflater.SYNC_FLUSH);
+				out.write(tmp, 0, n);
+			} while (n == tmp.length || !d.needsInput());
+		}
+		return out;
+	}
+	
+	/**
+	 * Fills the palette and the color table.
+	 * 
+	 * @return the amount of colors, or -1 if there are too many for a palette
+	 */
+	private int countColors(int[] argb, int len) {
+		Arrays.fill(tableIndices, -1);
+		int count = 0;
+		int last = 0;
+		boolean first = true;
+		for (int i = 0; i < len; i++) {
+			int c = normalize(argb[i]);
+			if (c == last && !first) continue;
+			first = false;
+			last = c;
+			int slot = slot(c);
+			if (tableIndices[slot] != -1) continue;
+			if (count == 256) return -1;
+			tableColors[slot] = c;
+			tableIndices[slot] = count;
+			palette[count++] = c;
+		}
+		return count;
+	}
+	
+	private static int normalize(int c) {
+		return (c >>> 24) == 0 ? 0 : c;
+	}
+	
+	private int slot(int c) {
+		int mask = (1 << TABLE_BITS)-1;
+		int slot = (c*0x9E3779B1) >>> (32-TABLE_BITS);
+		while (tableIndices[slot] != -1 && tableColors[slot] != c) {
+			slot = (slot+1) & mask;
+		}
+		return slot;
+	}
+	
+	/**
+	 * Writes PLTE and tRNS, with the translucent colors first so tRNS can
+	 * leave out every opaque one.
+	 */
+	private void writePalette(OutputStream out, int colors) throws IOException {
+		int translucent = 0;
+		for (int i = 0; i < colors; i++) {
+			if ((palette[i] >>> 24) != 0xFF) translucent++;
+		}
+		int nextTranslucent = 0, nextOpaque = translucent;
+		byte[] plte = ensure(0, colors*3);
+		byte[] trns = ensure(1, translucent);
+		for (int i = 0; i < colors; i++) {
+			int c = palette[i];
+			int idx = (c >>> 24) != 0xFF ? nextTranslucent++ : nextOpaque++;
+			remap[i] = idx;
+			plte[idx*3] = (byte)(c >> 16);
+			plte[idx*3+1] = (byte)(c >> 8);
+			plte[idx*3+2] = (byte)c;
+			if (idx < translucent) {
+				trns[idx] = (byte)(c >>> 24);
+			}
+		}
+		writeChunk(out, PLTE, plte, 0, colors*3);
+		if (translucent > 0) {
+			writeChunk(out, TRNS, trns, 0, translucent);
+		}
+	}
+	
+	private void writeIndexed(int[] argb, int width, int height, int depth) throws IOException {
+		int rowBytes = (width*depth+7)/8;
+		byte[] row = ensure(0, rowBytes+1);
+		int perByte = 8/depth;
+		for (int y = 0; y < height; y++) {
+			// palette images compress best unfiltered
+			Arrays.fill(row, 0, rowBytes+1, (byte)0);
+			row[0] = FILTER_NONE;
+			int off = y*width;
+			for (int x = 0; x < width; x++) {
+				int idx = remap[tableIndices[slot(normalize(argb[off+x]))]];
+				int shift = (perByte-1-(x % perByte))*depth;
+				row[1+x/perByte] |= idx << shift;
+			}
+			data.write(row, 0, rowBytes+1);
+		}
+	}
+	
+	private void writeTruecolor(int[] argb, int width, int height, int bpp) throws IOException {
+		int rowBytes = width*bpp;
+		if (prev.length < rowBytes) {
+			prev = new byte[rowBytes];
+		}
+		Arrays.fill(prev, 0, rowBytes, (byte)0);
+		byte[] raw = ensure(0, rowBytes);
+		byte[] best = null;
+		for (int i = 1; i < 5; i++) {
+			ensure(i, rowBytes+1);
+		}
+		for (int y = 0; y < height; y++) {
+			int off = y*width;
+			for (int x = 0, o = 0; x < width; x++) {
+				int c = argb[off+x];
+				if (bpp == 4 && (c >>> 24) == 0) c = 0;
+				raw[o++] = (byte)(c >> 16);
+				raw[o++] = (byte)(c >> 8);
+				raw[o++] = (byte)c;
+				if (bpp == 4) raw[o++] = (byte)(c >>> 24);
+			}
+			if (level == 0) {
+				best = filter(FILTER_NONE, raw, rowBytes, bpp, rows[1]);
+			} else if (level <= 3) {
+				best = filter(FILTER_SUB, raw, rowBytes, bpp, rows[1]);
+			} else {
+				// the usual heuristic: smallest sum of the filtered bytes as signed values
+				long bestSum = Long.MAX_VALUE;
+				for (int f = FILTER_SUB; f <= FILTER_PAETH; f++) {
+					byte[] candidate = filter(f, raw, rowBytes, bpp, rows[f]);
+					long sum = 0;
+					for (int i = 1; i <= rowBytes; i++) {
+						sum += Math.abs((int)candidate[i]);
+					}
+					if (sum < bestSum) {
+						bestSum = sum;
+						best = candidate;
+					}
+				}
+			}
+			data.write(best, 0, rowBytes+1);
+			System.arraycopy(raw, 0, prev, 0, rowBytes);
+		}
+	}
+	
+	private byte[] filter(int type, byte[] raw, int len, int bpp, byte[] out) {
+		out[0] = (byte)type;
+		for (int i = 0; i < len; i++) {
+			int a = i >= bpp ? raw[i-bpp] & 0xFF : 0;
+			int b = prev[i] & 0xFF;
+			int x = raw[i] & 0xFF;
+			int p;
+			switch (type) {
+				case FILTER_SUB: p = a; break;
+				case FILTER_UP: p = b; break;
+				case FILTER_AVERAGE: p = (a+b) >>> 1; break;
+				case FILTER_PAETH: {
+					int c = i >= bpp ? prev[i-bpp] & 0xFF : 0;
+					int pa = Math.abs(b-c);
+					int pb = Math.abs(a-c);
+					int pc = Math.abs(a+b-c-c);
+					p = pa <= pb && pa <= pc ? a : pb <= pc ? b : c;
+					break;
+				}
+				default: p = 0; break;
+			}
+			out[i+1] = (byte)(x-p);
+		}
+		return out;
+	}
+	
+	private byte[] ensure(int i, int size) {
+		if (rows[i].length < size) {
+			rows[i] = new byte[size];
+		}
+		return rows[i];
+	}
+	
+	private void writeChunk(OutputStream out, int type, byte[] data, int off, int len) throws IOException {
+		writeInt(chunkBuf, 0, len);
+		writeInt(chunkBuf, 4, type);
+		out.write(chunkBuf, 0, 8);
+		out.write(data, off, len);
+		crc.reset();
+		crc.update(chunkBuf, 4, 4);
+		crc.update(data, off, len);
+		writeInt(chunkBuf, 0, (int)crc.getValue());
+		out.write(chunkBuf, 0, 4);
+	}
+	
+	private static void writeInt(byte[] buf, int off, int i) {
+		buf[off] = (byte)(i >>> 24);
+		buf[off+1] = (byte)(i >>> 16);
+		buf[off+2] = (byte)(i >>> 8);
+		buf[off+3] = (byte)i;
+	}
+}